@@ -0,0 +1,90 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+/**
+ * Hand-written copying with the same semantics as generated updaters, the baseline of generated code
+ */
+final class HandWrittenUpdaters {
+    private HandWrittenUpdaters() {
+    }
+
+    static void update(PrimitiveModel oldModel, PrimitiveModel newModel) {
+        oldModel.active = newModel.active;
+        oldModel.level = newModel.level;
+        oldModel.rank = newModel.rank;
+        oldModel.grade = newModel.grade;
+        oldModel.count = newModel.count;
+        oldModel.timestamp = newModel.timestamp;
+        oldModel.ratio = newModel.ratio;
+        oldModel.score = newModel.score;
+        oldModel.likes = newModel.likes;
+        oldModel.views = newModel.views;
+    }
+
+    static void update(ReferenceModel oldModel, ReferenceModel newModel) {
+        oldModel.id = newModel.id;
+        if (newModel.title != null) {
+            oldModel.title = newModel.title;
+        }
+        if (newModel.summary != null) {
+            oldModel.summary = newModel.summary;
+        }
+        if (newModel.author != null) {
+            oldModel.author = newModel.author;
+        }
+        if (newModel.url != null) {
+            oldModel.url = newModel.url;
+        }
+        if (newModel.replies != null) {
+            oldModel.replies = newModel.replies;
+        }
+        if (newModel.updatedAt != null) {
+            oldModel.updatedAt = newModel.updatedAt;
+        }
+        if (newModel.tags != null) {
+            oldModel.tags = newModel.tags;
+        }
+        if (newModel.stats != null) {
+            oldModel.stats = newModel.stats;
+        }
+    }
+
+    static void update(NullableModel oldModel, NullableModel newModel) {
+        if (newModel.title != null) {
+            oldModel.title = newModel.title;
+        }
+        if (newModel.summary != null) {
+            oldModel.summary = newModel.summary;
+        }
+        if (newModel.author != null) {
+            oldModel.author = newModel.author;
+        }
+        if (newModel.url != null) {
+            oldModel.url = newModel.url;
+        }
+        if (newModel.avatar != null) {
+            oldModel.avatar = newModel.avatar;
+        }
+        if (newModel.location != null) {
+            oldModel.location = newModel.location;
+        }
+        if (newModel.replies != null) {
+            oldModel.replies = newModel.replies;
+        }
+        if (newModel.updatedAt != null) {
+            oldModel.updatedAt = newModel.updatedAt;
+        }
+    }
+
+    static void update(PropertyModel oldModel, PropertyModel newModel) {
+        oldModel.setId(newModel.getId());
+        if (newModel.getName() != null) {
+            oldModel.setName(newModel.getName());
+        }
+        if (newModel.getEmail() != null) {
+            oldModel.setEmail(newModel.getEmail());
+        }
+        oldModel.setAge(newModel.getAge());
+        oldModel.setVip(newModel.isVip());
+        oldModel.setBalance(newModel.getBalance());
+    }
+}
@@ -0,0 +1,108 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.campusapp.updater.Updater;
+import cn.campusapp.updater.UpdaterManager;
+import cn.campusapp.updater.UpdaterManagerImpl;
+
+/**
+ * Throughput of updater lookup by the generated UpdaterManagerImpl, compared to a hand-written HashMap registry
+ * and to loading the updater class reflectively by name on every lookup.
+ * Lookups alternate among the model types, so probes of every slot are measured, not only a single hot one.
+ * The shared variants look up through one manager from several threads, which only scales if lookups never write
+ * to the manager.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManagerBenchmark {
+    private static final Class<?>[] sTYPES = {PrimitiveModel.class, ReferenceModel.class, NullableModel.class, PropertyModel.class};
+
+    private final UpdaterManager mGenerated = new UpdaterManagerImpl();
+    private final Map<Class<?>, Updater<?>> mHandWritten = new HashMap<>();
+    private int mNext;
+
+    /**
+     * Registries shared by all benchmark threads
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final UpdaterManager mGenerated = new UpdaterManagerImpl();
+        final Map<Class<?>, Updater<?>> mHandWritten = new HashMap<>();
+
+        @Setup
+        public void setUp() {
+            mHandWritten.put(PrimitiveModel.class, new PrimitiveModelUpdater());
+            mHandWritten.put(ReferenceModel.class, new ReferenceModelUpdater());
+            mHandWritten.put(NullableModel.class, new NullableModelUpdater());
+            mHandWritten.put(PropertyModel.class, new PropertyModelUpdater());
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mHandWritten.put(PrimitiveModel.class, new PrimitiveModelUpdater());
+        mHandWritten.put(ReferenceModel.class, new ReferenceModelUpdater());
+        mHandWritten.put(NullableModel.class, new NullableModelUpdater());
+        mHandWritten.put(PropertyModel.class, new PropertyModelUpdater());
+    }
+
+    private Class<?> nextType() {
+        final Class<?> type = sTYPES[mNext];
+        mNext = (mNext + 1) & (sTYPES.length - 1);
+        return type;
+    }
+
+    @Benchmark
+    public Updater<?> sameTypeGenerated() {
+        return mGenerated.getUpdater(PrimitiveModel.class);
+    }
+
+    @Benchmark
+    public Updater<?> sameTypeHandWritten() {
+        return mHandWritten.get(PrimitiveModel.class);
+    }
+
+    @Benchmark
+    public Updater<?> mixedTypesGenerated() {
+        return mGenerated.getUpdater(nextType());
+    }
+
+    @Benchmark
+    public Updater<?> mixedTypesHandWritten() {
+        return mHandWritten.get(nextType());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Updater<?> sharedMixedTypesGenerated(Shared shared) {
+        return shared.mGenerated.getUpdater(nextType());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Updater<?> sharedMixedTypesHandWritten(Shared shared) {
+        return shared.mHandWritten.get(nextType());
+    }
+
+    @Benchmark
+    public Updater<?> mixedTypesReflection() throws ReflectiveOperationException {
+        final Class<?> type = nextType();
+        return (Updater<?>) Class.forName(type.getName() + Updater.CLASS_PREFIX).newInstance();
+    }
+}
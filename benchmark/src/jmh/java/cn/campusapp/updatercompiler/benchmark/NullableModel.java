@@ -0,0 +1,41 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * A model of reference fields, most of which are null in incoming entities, so they are omitted by update
+ */
+@Updatable
+public class NullableModel {
+    public String title;
+    public String summary;
+    public String author;
+    public String url;
+    public String avatar;
+    public String location;
+    public Integer replies;
+    public Long updatedAt;
+
+    static NullableModel create(int seed) {
+        final NullableModel model = new NullableModel();
+        model.title = "title " + seed;
+        model.summary = "summary " + seed;
+        model.author = "author " + seed;
+        model.url = "https://example.com/" + seed;
+        model.avatar = "https://example.com/avatar/" + seed;
+        model.location = "location " + seed;
+        model.replies = seed;
+        model.updatedAt = 1450000000000L + seed;
+        return model;
+    }
+
+    /**
+     * An incoming entity carrying only a quarter of the fields
+     */
+    static NullableModel createPartial(int seed) {
+        final NullableModel model = new NullableModel();
+        model.title = "title " + seed;
+        model.replies = seed;
+        return model;
+    }
+}
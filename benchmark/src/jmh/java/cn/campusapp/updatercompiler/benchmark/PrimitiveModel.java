@@ -0,0 +1,35 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * A model of primitive fields only
+ */
+@Updatable
+public class PrimitiveModel {
+    public boolean active;
+    public byte level;
+    public short rank;
+    public char grade;
+    public int count;
+    public long timestamp;
+    public float ratio;
+    public double score;
+    public int likes;
+    public long views;
+
+    static PrimitiveModel create(int seed) {
+        final PrimitiveModel model = new PrimitiveModel();
+        model.active = (seed & 1) == 0;
+        model.level = (byte) seed;
+        model.rank = (short) (seed * 3);
+        model.grade = (char) ('A' + seed % 5);
+        model.count = seed * 7;
+        model.timestamp = 1450000000000L + seed;
+        model.ratio = seed / 3f;
+        model.score = seed / 7d;
+        model.likes = seed * 11;
+        model.views = seed * 13L;
+        return model;
+    }
+}
@@ -0,0 +1,75 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * A model of private fields, which are updated through getters and setters
+ */
+@Updatable
+public class PropertyModel {
+    private long mId;
+    private String mName;
+    private String mEmail;
+    private int mAge;
+    private boolean mIsVip;
+    private double mBalance;
+
+    public long getId() {
+        return mId;
+    }
+
+    public void setId(long id) {
+        mId = id;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    public String getEmail() {
+        return mEmail;
+    }
+
+    public void setEmail(String email) {
+        mEmail = email;
+    }
+
+    public int getAge() {
+        return mAge;
+    }
+
+    public void setAge(int age) {
+        mAge = age;
+    }
+
+    public boolean isVip() {
+        return mIsVip;
+    }
+
+    public void setVip(boolean vip) {
+        mIsVip = vip;
+    }
+
+    public double getBalance() {
+        return mBalance;
+    }
+
+    public void setBalance(double balance) {
+        mBalance = balance;
+    }
+
+    static PropertyModel create(int seed) {
+        final PropertyModel model = new PropertyModel();
+        model.setId(seed);
+        model.setName("name " + seed);
+        model.setEmail(seed + "@example.com");
+        model.setAge(seed % 100);
+        model.setVip((seed & 1) == 0);
+        model.setBalance(seed / 7d);
+        return model;
+    }
+}
@@ -0,0 +1,36 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * A model of mostly reference fields
+ */
+@Updatable
+public class ReferenceModel {
+    public long id;
+    public String title;
+    public String summary;
+    public String author;
+    public String url;
+    public Integer replies;
+    public Long updatedAt;
+    public List<String> tags;
+    public PrimitiveModel stats;
+
+    static ReferenceModel create(int seed) {
+        final ReferenceModel model = new ReferenceModel();
+        model.id = seed;
+        model.title = "title " + seed;
+        model.summary = "summary " + seed;
+        model.author = "author " + seed;
+        model.url = "https://example.com/" + seed;
+        model.replies = seed;
+        model.updatedAt = 1450000000000L + seed;
+        model.tags = Arrays.asList("tag" + seed, "tag" + (seed + 1));
+        model.stats = PrimitiveModel.create(seed);
+        return model;
+    }
+}
@@ -0,0 +1,39 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reflection-based copying with the same semantics as generated updaters, null values of references are omitted.
+ * Fields are looked up once, as a reasonable reflective implementation would.
+ */
+final class ReflectionUpdater<T> {
+    private final Field[] mFields;
+
+    ReflectionUpdater(Class<T> type) {
+        final List<Field> fields = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            final int modifiers = field.getModifiers();
+            if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)) {
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        mFields = fields.toArray(new Field[fields.size()]);
+    }
+
+    void update(T oldEntity, T newEntity) {
+        try {
+            for (Field field : mFields) {
+                final Object value = field.get(newEntity);
+                if (value != null || field.getType().isPrimitive()) {
+                    field.set(oldEntity, value);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of generated update compared to hand-written and reflection-based copying, for each kind of model.
+ * Every benchmark returns the updated entity, so the copy is not eliminated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+    private PrimitiveModel mOldPrimitive;
+    private PrimitiveModel mNewPrimitive;
+    private ReferenceModel mOldReference;
+    private ReferenceModel mNewReference;
+    private NullableModel mOldNullable;
+    private NullableModel mNewNullable;
+    private PropertyModel mOldProperty;
+    private PropertyModel mNewProperty;
+
+    private final PrimitiveModelUpdater mPrimitiveUpdater = new PrimitiveModelUpdater();
+    private final ReferenceModelUpdater mReferenceUpdater = new ReferenceModelUpdater();
+    private final NullableModelUpdater mNullableUpdater = new NullableModelUpdater();
+    private final PropertyModelUpdater mPropertyUpdater = new PropertyModelUpdater();
+
+    private final ReflectionUpdater<PrimitiveModel> mPrimitiveReflection = new ReflectionUpdater<>(PrimitiveModel.class);
+    private final ReflectionUpdater<ReferenceModel> mReferenceReflection = new ReflectionUpdater<>(ReferenceModel.class);
+    private final ReflectionUpdater<NullableModel> mNullableReflection = new ReflectionUpdater<>(NullableModel.class);
+    private final ReflectionUpdater<PropertyModel> mPropertyReflection = new ReflectionUpdater<>(PropertyModel.class);
+
+    @Setup
+    public void setUp() {
+        mOldPrimitive = PrimitiveModel.create(1);
+        mNewPrimitive = PrimitiveModel.create(2);
+        mOldReference = ReferenceModel.create(1);
+        mNewReference = ReferenceModel.create(2);
+        mOldNullable = NullableModel.create(1);
+        mNewNullable = NullableModel.createPartial(2);
+        mOldProperty = PropertyModel.create(1);
+        mNewProperty = PropertyModel.create(2);
+    }
+
+    @Benchmark
+    public PrimitiveModel primitiveGenerated() {
+        mPrimitiveUpdater.update(mOldPrimitive, mNewPrimitive);
+        return mOldPrimitive;
+    }
+
+    @Benchmark
+    public PrimitiveModel primitiveHandWritten() {
+        HandWrittenUpdaters.update(mOldPrimitive, mNewPrimitive);
+        return mOldPrimitive;
+    }
+
+    @Benchmark
+    public PrimitiveModel primitiveReflection() {
+        mPrimitiveReflection.update(mOldPrimitive, mNewPrimitive);
+        return mOldPrimitive;
+    }
+
+    @Benchmark
+    public ReferenceModel referenceGenerated() {
+        mReferenceUpdater.update(mOldReference, mNewReference);
+        return mOldReference;
+    }
+
+    @Benchmark
+    public ReferenceModel referenceHandWritten() {
+        HandWrittenUpdaters.update(mOldReference, mNewReference);
+        return mOldReference;
+    }
+
+    @Benchmark
+    public ReferenceModel referenceReflection() {
+        mReferenceReflection.update(mOldReference, mNewReference);
+        return mOldReference;
+    }
+
+    @Benchmark
+    public NullableModel nullableGenerated() {
+        mNullableUpdater.update(mOldNullable, mNewNullable);
+        return mOldNullable;
+    }
+
+    @Benchmark
+    public NullableModel nullableHandWritten() {
+        HandWrittenUpdaters.update(mOldNullable, mNewNullable);
+        return mOldNullable;
+    }
+
+    @Benchmark
+    public NullableModel nullableReflection() {
+        mNullableReflection.update(mOldNullable, mNewNullable);
+        return mOldNullable;
+    }
+
+    @Benchmark
+    public PropertyModel propertyGenerated() {
+        mPropertyUpdater.update(mOldProperty, mNewProperty);
+        return mOldProperty;
+    }
+
+    @Benchmark
+    public PropertyModel propertyHandWritten() {
+        HandWrittenUpdaters.update(mOldProperty, mNewProperty);
+        return mOldProperty;
+    }
+
+    @Benchmark
+    public PropertyModel propertyReflection() {
+        mPropertyReflection.update(mOldProperty, mNewProperty);
+        return mOldProperty;
+    }
+}
@@ -0,0 +1,131 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Processor;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import cn.campusapp.updatercompiler.manager.ManagerProcessor;
+import cn.campusapp.updatercompiler.updater.UpdaterProcessor;
+
+/**
+ * Model of an incremental Gradle build of a module holding the synthetic updatable types of {@link ProcessorBenchmark}
+ * and plain classes, after one plain class is edited.
+ * <p/>
+ * Gradle recompiles the edited source plus every source carrying an annotation supported by an aggregating processor,
+ * and all sources if an aggregating processor supports "*", which is as slow as a full build. The set recompiled with
+ * the annotation types currently supported by {@link ManagerProcessor} is compiled against the classes of a full build.
+ * <p/>
+ * Usage: IncrementalBenchmark [updatable types] [fields per type] [plain types] [runs]
+ */
+public final class IncrementalBenchmark {
+
+    private IncrementalBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int types = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int fields = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int plainTypes = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        final int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Benchmark must be run on a JDK");
+        }
+        final File root = ProcessorBenchmark.createTempDir("updater-incremental-benchmark");
+        try {
+            final File sourceDir = new File(root, "src");
+            final List<File> annotated = ProcessorBenchmark.writeSources(sourceDir, types, fields);
+            final List<File> plain = writePlainSources(sourceDir, plainTypes);
+            final List<File> all = new ArrayList<>(annotated);
+            all.addAll(plain);
+
+            final Set<String> supported = new ManagerProcessor().getSupportedAnnotationTypes();
+            final List<File> incremental = new ArrayList<>();
+            if (supported.contains("*")) {
+                incremental.addAll(all);
+            } else {
+                incremental.addAll(annotated);
+                incremental.add(plain.get(0));
+            }
+            System.out.println(String.format("%d updatable types x %d fields, %d plain types, %d runs",
+                    types, fields, plainTypes, runs));
+            System.out.println(String.format("ManagerProcessor supports %s, %d of %d sources are recompiled",
+                    supported, incremental.size(), all.size()));
+
+            final File fullDir = new File(root, "full");
+            for (int run = 1; run <= runs; run++) {
+                final long full = compile(compiler, all, fullDir, null);
+                final long current = compile(compiler, incremental, new File(root, "incremental"), fullDir);
+                System.out.println(String.format("run %d: full build %d ms, incremental build %d ms",
+                        run, full / 1000000, current / 1000000));
+            }
+        } finally {
+            ProcessorBenchmark.deleteRecursively(root);
+        }
+    }
+
+    /**
+     * Write plain classes without annotation, the first of which is the edited one
+     */
+    private static List<File> writePlainSources(File sourceDir, int count) throws IOException {
+        final File packageDir = new File(sourceDir, ProcessorBenchmark.sPACKAGE);
+        packageDir.mkdirs();
+        final List<File> sources = new ArrayList<>(count);
+        for (int type = 0; type < count; type++) {
+            final String name = "Plain" + type;
+            final File file = new File(packageDir, name + ".java");
+            try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+                writer.append("package ").append(ProcessorBenchmark.sPACKAGE).append(";\n")
+                        .append("public class ").append(name).append(" {\n")
+                        .append("    private int mValue;\n")
+                        .append("    public int next() { return ++mValue; }\n")
+                        .append("}\n");
+            }
+            sources.add(file);
+        }
+        return sources;
+    }
+
+    /**
+     * Compile sources with both processors into a fresh output directory
+     *
+     * @param previousDir classes of the previous build, which provide unchanged types, null for a full build
+     * @return elapsed nanoseconds
+     */
+    private static long compile(JavaCompiler compiler, List<File> sources, File outputDir, File previousDir) throws IOException {
+        ProcessorBenchmark.deleteRecursively(outputDir);
+        final File generatedDir = new File(outputDir, "generated");
+        final File classDir = new File(outputDir, "classes");
+        generatedDir.mkdirs();
+        classDir.mkdirs();
+        String classpath = System.getProperty("java.class.path");
+        if (previousDir != null) {
+            classpath = new File(previousDir, "classes").getPath() + File.pathSeparator + classpath;
+        }
+        final List<String> options = Arrays.asList(
+                "-classpath", classpath,
+                "-s", generatedDir.getPath(),
+                "-d", classDir.getPath());
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            final Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sources);
+            final JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.err), fileManager, null, options, null, units);
+            task.setProcessors(Arrays.<Processor>asList(new UpdaterProcessor(), new ManagerProcessor()));
+            final long start = System.nanoTime();
+            if (!task.call()) {
+                throw new IllegalStateException("Compilation failed");
+            }
+            return System.nanoTime() - start;
+        }
+    }
+}
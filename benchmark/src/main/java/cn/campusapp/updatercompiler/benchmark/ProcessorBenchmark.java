@@ -0,0 +1,141 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import cn.campusapp.updatercompiler.manager.ManagerProcessor;
+import cn.campusapp.updatercompiler.updater.UpdaterProcessor;
+
+/**
+ * Synthetic benchmark of the annotation processors.
+ * <p/>
+ * Generates a number of large {@link cn.campusapp.updater.Updatable} types sharing a superclass, half of whose fields
+ * are public and half are private with getter/setter, runs javac over them with annotation processing only,
+ * and reports the time spent in each processor.
+ * <p/>
+ * Usage: ProcessorBenchmark [types] [fields per type] [runs]
+ */
+public final class ProcessorBenchmark {
+    static final String sPACKAGE = "bench";
+
+    private ProcessorBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int types = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int fields = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Benchmark must be run on a JDK");
+        }
+        final File root = createTempDir("updater-benchmark");
+        final File sourceDir = new File(root, "src");
+        final File generatedDir = new File(root, "generated");
+        final File classDir = new File(root, "classes");
+        final List<File> sources = writeSources(sourceDir, types, fields);
+
+        System.out.println(String.format("%d types x %d fields, %d runs", types, fields, runs));
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            final Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sources);
+            for (int run = 1; run <= runs; run++) {
+                deleteRecursively(generatedDir);
+                deleteRecursively(classDir);
+                generatedDir.mkdirs();
+                classDir.mkdirs();
+                final TimedProcessor updaterProcessor = new TimedProcessor(new UpdaterProcessor());
+                final TimedProcessor managerProcessor = new TimedProcessor(new ManagerProcessor());
+                final List<String> options = Arrays.asList(
+                        "-proc:only",
+                        "-classpath", System.getProperty("java.class.path"),
+                        "-s", generatedDir.getPath(),
+                        "-d", classDir.getPath());
+                final JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.err), fileManager, null, options, null, units);
+                task.setProcessors(Arrays.asList(updaterProcessor, managerProcessor));
+                final long start = System.nanoTime();
+                if (!task.call()) {
+                    throw new IllegalStateException("Compilation failed");
+                }
+                final long total = System.nanoTime() - start;
+                System.out.println(String.format("run %d: javac %d ms, UpdaterProcessor %d ms (%d us/type), ManagerProcessor %d ms",
+                        run, total / 1000000, updaterProcessor.getNanos() / 1000000, updaterProcessor.getNanos() / 1000 / types,
+                        managerProcessor.getNanos() / 1000000));
+            }
+        } finally {
+            deleteRecursively(root);
+        }
+    }
+
+    /**
+     * Write the shared superclass and the updatable types
+     */
+    static List<File> writeSources(File sourceDir, int types, int fields) throws IOException {
+        final File packageDir = new File(sourceDir, sPACKAGE);
+        packageDir.mkdirs();
+        final List<File> sources = new ArrayList<>(types + 1);
+        final StringBuilder base = new StringBuilder()
+                .append("package ").append(sPACKAGE).append(";\n")
+                .append("public abstract class BaseModel {\n")
+                .append("    public long id;\n")
+                .append("    private String mCreatedBy;\n")
+                .append("    public String getCreatedBy() { return mCreatedBy; }\n")
+                .append("    public void setCreatedBy(String createdBy) { mCreatedBy = createdBy; }\n")
+                .append("}\n");
+        sources.add(write(packageDir, "BaseModel", base));
+        for (int type = 0; type < types; type++) {
+            final String name = "Model" + type;
+            final StringBuilder source = new StringBuilder()
+                    .append("package ").append(sPACKAGE).append(";\n")
+                    .append("@cn.campusapp.updater.Updatable\n")
+                    .append("public class ").append(name).append(" extends BaseModel {\n");
+            for (int field = 0; field < fields; field++) {
+                if (field % 2 == 0) {
+                    source.append("    public int count").append(field).append(";\n");
+                } else {
+                    source.append("    private String mName").append(field).append(";\n")
+                            .append("    public String getName").append(field).append("() { return mName").append(field).append("; }\n")
+                            .append("    public void setName").append(field).append("(String name) { mName").append(field).append(" = name; }\n");
+                }
+            }
+            source.append("}\n");
+            sources.add(write(packageDir, name, source));
+        }
+        return sources;
+    }
+
+    private static File write(File packageDir, String name, CharSequence source) throws IOException {
+        final File file = new File(packageDir, name + ".java");
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.append(source);
+        }
+        return file;
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
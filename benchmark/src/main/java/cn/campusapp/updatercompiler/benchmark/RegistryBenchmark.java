@@ -0,0 +1,133 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import cn.campusapp.updater.Updater;
+import cn.campusapp.updater.UpdaterManager;
+import cn.campusapp.updatercompiler.manager.ManagerProcessor;
+import cn.campusapp.updatercompiler.updater.UpdaterProcessor;
+
+/**
+ * Comparison of generated code with one updater class per entity type and in consolidated mode,
+ * see {@link ManagerProcessor#OPTION_CONSOLIDATED}.
+ * <p/>
+ * The synthetic types of {@link ProcessorBenchmark} are compiled in both modes. The number and size of generated
+ * class files are reported, which stand in for dex size, since dx is not available to a plain JVM.
+ * Then every run loads the classes in a fresh class loader, and measures the first lookup and update of every type,
+ * which is the cold start cost of class loading and verification. Entity classes are loaded before the clock starts.
+ * <p/>
+ * Usage: RegistryBenchmark [types] [fields per type] [runs]
+ */
+public final class RegistryBenchmark {
+    private static final String[] sMODES = {"per type", "consolidated"};
+
+    private RegistryBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int types = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int fields = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Benchmark must be run on a JDK");
+        }
+        final File root = ProcessorBenchmark.createTempDir("updater-registry-benchmark");
+        try {
+            final List<File> sources = ProcessorBenchmark.writeSources(new File(root, "src"), types, fields);
+            final File[] classDirs = new File[sMODES.length];
+            System.out.println(String.format("%d types x %d fields, %d runs", types, fields, runs));
+            for (int mode = 0; mode < sMODES.length; mode++) {
+                classDirs[mode] = new File(root, "classes" + mode);
+                compile(compiler, sources, new File(root, "generated" + mode), classDirs[mode], mode == 1);
+                final long[] countAndSize = new long[2];
+                measureGenerated(classDirs[mode], countAndSize);
+                System.out.println(String.format("%s: %d generated classes, %d bytes", sMODES[mode], countAndSize[0], countAndSize[1]));
+            }
+            for (int run = 1; run <= runs; run++) {
+                final StringBuilder line = new StringBuilder("run ").append(run).append(':');
+                for (int mode = 0; mode < sMODES.length; mode++) {
+                    line.append(String.format(" %s %d us", sMODES[mode], coldStart(classDirs[mode], types) / 1000));
+                }
+                System.out.println(line);
+            }
+        } finally {
+            ProcessorBenchmark.deleteRecursively(root);
+        }
+    }
+
+    private static void compile(JavaCompiler compiler, List<File> sources, File generatedDir, File classDir,
+                                boolean consolidated) throws IOException {
+        generatedDir.mkdirs();
+        classDir.mkdirs();
+        final List<String> options = new ArrayList<>(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-s", generatedDir.getPath(),
+                "-d", classDir.getPath()));
+        if (consolidated) {
+            options.add("-A" + ManagerProcessor.OPTION_CONSOLIDATED + "=true");
+        }
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            final Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sources);
+            final JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.err), fileManager, null, options, null, units);
+            task.setProcessors(Arrays.asList(new UpdaterProcessor(), new ManagerProcessor()));
+            if (!task.call()) {
+                throw new IllegalStateException("Compilation failed");
+            }
+        }
+    }
+
+    /**
+     * Count generated class files and their total size, which are those named after {@link Updater}
+     *
+     * @param countAndSize out-parameter, number of files and number of bytes are added to its elements
+     */
+    private static void measureGenerated(File file, long[] countAndSize) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                measureGenerated(child, countAndSize);
+            }
+        } else if (file.getName().endsWith(".class") && file.getName().contains(Updater.class.getSimpleName())) {
+            countAndSize[0]++;
+            countAndSize[1] += file.length();
+        }
+    }
+
+    /**
+     * Load compiled classes in a new class loader, and measure looking up the updater of every type and updating
+     * an entity of the type once
+     *
+     * @return elapsed nanoseconds
+     */
+    @SuppressWarnings("unchecked")
+    private static long coldStart(File classDir, int types) throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classDir.toURI().toURL()}, RegistryBenchmark.class.getClassLoader())) {
+            final Class<Object>[] entityClasses = new Class[types];
+            final Object[] entities = new Object[types];
+            for (int type = 0; type < types; type++) {
+                entityClasses[type] = (Class<Object>) Class.forName(ProcessorBenchmark.sPACKAGE + ".Model" + type, true, loader);
+                entities[type] = entityClasses[type].newInstance();
+            }
+            final long start = System.nanoTime();
+            final UpdaterManager manager = (UpdaterManager) Class.forName(UpdaterManager.class.getName() + "Impl", true, loader).newInstance();
+            for (int type = 0; type < types; type++) {
+                manager.getUpdater(entityClasses[type]).update(entities[type], entities[type]);
+            }
+            return System.nanoTime() - start;
+        }
+    }
+}
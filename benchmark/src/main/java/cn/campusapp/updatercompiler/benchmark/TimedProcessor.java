@@ -0,0 +1,70 @@
+package cn.campusapp.updatercompiler.benchmark;
+
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * A processor which delegates to another one and measures the time spent in it,
+ * so the time of the processor is told apart from the time of javac itself
+ */
+final class TimedProcessor implements Processor {
+    private final Processor mDelegate;
+    private long mNanos;
+
+    TimedProcessor(Processor delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Time spent in {@link #init} and {@link #process} of the delegate, in nanoseconds
+     */
+    long getNanos() {
+        return mNanos;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return mDelegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return mDelegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return mDelegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        final long start = System.nanoTime();
+        mDelegate.init(processingEnv);
+        mNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final long start = System.nanoTime();
+        try {
+            return mDelegate.process(annotations, roundEnv);
+        } finally {
+            mNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+        return mDelegate.getCompletions(element, annotation, member, userText);
+    }
+}
@@ -1,21 +1,27 @@
 package cn.campusapp.updatercompiler.manager;
 
 import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ArrayTypeName;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.ParameterSpec;
 import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
 import com.squareup.javapoet.TypeVariableName;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
@@ -26,42 +32,286 @@ import cn.campusapp.updater.Updater;
 import cn.campusapp.updater.UpdaterManager;
 
 /**
+ * Generator of UpdaterManager implementation.
+ * <p/>
+ * Updaters are stored in an open addressing hash table keyed by the identity of entity classes,
+ * so a lookup is a few array reads without boxing or allocation. The table is sized when generated to at least twice
+ * the number of entity types, so probing always ends at an empty slot. A call site that looks up the same class
+ * repeatedly should keep the returned updater.
+ * <p/>
+ * Updaters are instantiated on first lookup, so updater classes are not loaded before they are used.
+ * Instances are published through an {@link AtomicReferenceArray}, the read path never locks.
+ * <p/>
+ * A module can generate an index (shard) instead, which lists its entity types in constant {@link #TYPES}.
+ * The manager of the application module registers the entity types of every shard found on its compile classpath
+ * and delegates to the shard, which is instantiated on first lookup of one of its types.
+ * <p/>
+ * In consolidated mode there is no updater class per entity type. The static update method of every type is put in
+ * the generated class itself, and the updater of a type is an instance of a single nested dispatcher class which
+ * switches on the ordinal of its type, so two classes are loaded however many types there are.
+ * <p/>
  * Created by chen on 16/1/7.
  */
 public class ManagerGenerator {
+    /**
+     * Name of the constant in a shard which lists canonical names of its entity types, separated by comma
+     */
+    public static final String TYPES = "TYPES";
     private static final String sMANAGER_NAME = "UpdaterManagerImpl";
+    /**
+     * Simple name of the nested updater of consolidated mode
+     */
+    private static final String sDISPATCHER = "Dispatcher";
     private final PackageElement mPackageElement;
-    private final HashMap<TypeMirror, TypeElement> mEntityUpdaterMap = new HashMap<>();
+    private final String mClassName;
+    private final boolean mIsShard;
+    /**
+     * Entity types and their updaters, the iteration order gives the ordinal of each updater
+     */
+    private final LinkedHashMap<TypeName, TypeElement> mEntityUpdaterMap = new LinkedHashMap<>();
+    /**
+     * Entity types of consolidated mode and their static update methods, ordinals follow the ordinals of updaters
+     */
+    private final LinkedHashMap<TypeElement, MethodSpec> mEntityMethodMap = new LinkedHashMap<>();
+    /**
+     * Shards and their entity types, the ordinal of a shard follows the ordinals of updaters and static update methods
+     */
+    private final LinkedHashMap<ClassName, List<ClassName>> mShardTypesMap = new LinkedHashMap<>();
+    /**
+     * The interface implemented by updaters to access fields by index, null unless method getAccessor is generated
+     */
+    private ClassName mFieldAccessor;
 
     public ManagerGenerator(PackageElement packageElement) {
+        this(packageElement, sMANAGER_NAME, false);
+    }
+
+    /**
+     * @param packageElement the package of generated class
+     * @param className      simple name of generated class
+     * @param isShard        whether to generate the index of a module rather than the manager of application
+     */
+    public ManagerGenerator(PackageElement packageElement, String className, boolean isShard) {
         mPackageElement = packageElement;
+        mClassName = className;
+        mIsShard = isShard;
     }
 
     public void put(TypeMirror entityTypeMirror, TypeElement updaterType) {
-        mEntityUpdaterMap.put(entityTypeMirror, updaterType);
+        mEntityUpdaterMap.put(TypeName.get(entityTypeMirror), updaterType);
     }
 
-    private FieldSpec generateMapField() {
-        ParameterizedTypeName type = ParameterizedTypeName.get(ClassName.get(HashMap.class),
-                ParameterizedTypeName.get(ClassName.get(Class.class), TypeVariableName.get("?")),
-                ParameterizedTypeName.get(ClassName.get(Updater.class), TypeVariableName.get("?"))
-        );
-        return FieldSpec.builder(type, "mUpdaterMap", Modifier.PRIVATE, Modifier.FINAL)
-                .initializer("new $T<>()", HashMap.class)
+    /**
+     * Register an entity type of consolidated mode, which is updated by a static method of generated class
+     *
+     * @param entityType   the entity type
+     * @param updateMethod the static method taking old and new entity, which is added to generated class
+     */
+    public void putConsolidated(TypeElement entityType, MethodSpec updateMethod) {
+        mEntityMethodMap.put(entityType, updateMethod);
+    }
+
+    /**
+     * Register a shard whose updaters will be looked up through this manager
+     *
+     * @param shard       class name of the shard
+     * @param entityTypes entity types listed by the shard
+     */
+    public void putShard(ClassName shard, List<ClassName> entityTypes) {
+        mShardTypesMap.put(shard, entityTypes);
+    }
+
+    /**
+     * Generate method getAccessor, which returns the updater of a type as the field accessor it implements
+     *
+     * @param fieldAccessor the FieldAccessor interface
+     */
+    public void setFieldAccessor(ClassName fieldAccessor) {
+        mFieldAccessor = fieldAccessor;
+    }
+
+    /**
+     * Whether neither updater nor shard is registered
+     */
+    public boolean isEmpty() {
+        return mEntityUpdaterMap.isEmpty() && mEntityMethodMap.isEmpty() && mShardTypesMap.isEmpty();
+    }
+
+    /**
+     * Capacity of the hash table, which is a power of two and at least twice the number of entity types,
+     * so there is always an empty slot to terminate probing
+     */
+    private int getTableCapacity() {
+        int size = mEntityUpdaterMap.size() + mEntityMethodMap.size();
+        for (final List<ClassName> entityTypes : mShardTypesMap.values()) {
+            size += entityTypes.size();
+        }
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Generate the constant listing entity types of a shard
+     */
+    private FieldSpec generateShardTypesField() {
+        final StringBuilder types = new StringBuilder();
+        for (final TypeName entityType : mEntityUpdaterMap.keySet()) {
+            if (types.length() > 0) {
+                types.append(',');
+            }
+            types.append(entityType);
+        }
+        for (final TypeElement entityType : mEntityMethodMap.keySet()) {
+            if (types.length() > 0) {
+                types.append(',');
+            }
+            types.append(ClassName.get(entityType));
+        }
+        return FieldSpec.builder(String.class, TYPES, Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$S", types)
                 .build();
     }
 
-    private MethodSpec generateConstructor(FieldSpec mapperField) {
+    /**
+     * Generate the field caching the instance of a shard
+     */
+    private FieldSpec generateShardField(ClassName shard, int shardIndex) {
+        return FieldSpec.builder(shard, "mShard" + shardIndex, Modifier.PRIVATE, Modifier.VOLATILE)
+                .build();
+    }
+
+    /**
+     * Generate the method which instantiates a shard on first call.
+     * If several threads race, each may create its own shard, which is harmless since shards are stateless lookups.
+     */
+    private MethodSpec generateShardMethod(ClassName shard, FieldSpec shardField, int shardIndex) {
+        return MethodSpec.methodBuilder("shard" + shardIndex)
+                .addModifiers(Modifier.PRIVATE)
+                .returns(shard)
+                .addStatement("$T shard = $N", shard, shardField)
+                .beginControlFlow("if (shard == null)")
+                .addStatement("shard = new $T()", shard)
+                .addStatement("$N = shard", shardField)
+                .endControlFlow()
+                .addStatement("return shard")
+                .build();
+    }
+
+    private FieldSpec generateTypesField() {
+        return FieldSpec.builder(ArrayTypeName.of(ParameterizedTypeName.get(ClassName.get(Class.class), TypeVariableName.get("?"))),
+                "mTypes", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T<?>[$L]", Class.class, getTableCapacity())
+                .build();
+    }
+
+    private FieldSpec generateOrdinalsField() {
+        return FieldSpec.builder(ArrayTypeName.of(TypeName.INT), "mOrdinals", Modifier.PRIVATE, Modifier.FINAL)
+                .addJavadoc("Case of method create for each slot\n")
+                .initializer("new int[$L]", getTableCapacity())
+                .build();
+    }
+
+    private FieldSpec generateUpdatersField() {
+        return FieldSpec.builder(ParameterizedTypeName.get(ClassName.get(AtomicReferenceArray.class),
+                ParameterizedTypeName.get(ClassName.get(Updater.class), TypeVariableName.get("?"))),
+                "mUpdaters", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T<>($L)", AtomicReferenceArray.class, getTableCapacity())
+                .build();
+    }
+
+    private MethodSpec generateConstructor(MethodSpec putMethod) {
         final MethodSpec.Builder builder = MethodSpec.constructorBuilder().addModifiers(Modifier.PUBLIC);
-        for (final Map.Entry<TypeMirror, TypeElement> classTypeElementEntry : mEntityUpdaterMap.entrySet()) {
-            final TypeMirror entityClass = classTypeElementEntry.getKey();
-            final TypeElement typeElement = classTypeElementEntry.getValue();
-            builder.addStatement("$N.put($T.class, new $T())", mapperField, entityClass, typeElement.asType());
+        int ordinal = 0;
+        for (final TypeName entityClass : mEntityUpdaterMap.keySet()) {
+            builder.addStatement("$N($T.class, $L)", putMethod, entityClass, ordinal++);
+        }
+        for (final TypeElement entityType : mEntityMethodMap.keySet()) {
+            builder.addStatement("$N($T.class, $L)", putMethod, ClassName.get(entityType), ordinal++);
+        }
+        for (final List<ClassName> entityTypes : mShardTypesMap.values()) {
+            for (final ClassName entityClass : entityTypes) {
+                builder.addStatement("$N($T.class, $L)", putMethod, entityClass, ordinal);
+            }
+            ordinal++;
         }
         return builder.build();
     }
 
-    private MethodSpec generateGetUpdaterMethod(FieldSpec mapField) {
+    /**
+     * Generate the method which instantiates the updater of a slot.
+     * If several threads race, the instance published first wins.
+     */
+    private MethodSpec generateCreateMethod(FieldSpec typesField, FieldSpec ordinalsField, FieldSpec updatersField,
+                                            List<MethodSpec> shardMethods) {
+        final TypeName updaterType = ParameterizedTypeName.get(ClassName.get(Updater.class), TypeVariableName.get("?"));
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("create")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(TypeName.INT, "index")
+                .returns(updaterType)
+                .addStatement("final $T updater", updaterType);
+        /**
+         * Dispatchers take the ordinal of their type, so they are created without a case per type
+         */
+        final boolean consolidated = !mEntityMethodMap.isEmpty();
+        if (consolidated) {
+            final int first = mEntityUpdaterMap.size();
+            builder.addStatement("final int ordinal = $N[index]", ordinalsField)
+                    .beginControlFlow("if (ordinal >= $L && ordinal < $L)", first, first + mEntityMethodMap.size())
+                    .addStatement("updater = new $N(ordinal)", sDISPATCHER)
+                    .nextControlFlow("else");
+        }
+        builder.beginControlFlow("switch ($N[index])", ordinalsField);
+        int ordinal = 0;
+        for (final TypeElement updaterClass : mEntityUpdaterMap.values()) {
+            builder.addCode("case $L:\n$>", ordinal++)
+                    .addStatement("updater = new $T()", updaterClass.asType())
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        ordinal += mEntityMethodMap.size();
+        for (final MethodSpec shardMethod : shardMethods) {
+            builder.addCode("case $L:\n$>", ordinal++)
+                    .addStatement("updater = $N().getUpdater($N[index])", shardMethod, typesField)
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        builder.addCode("default:\n$>")
+                .addStatement("throw new $T()", AssertionError.class)
+                .addCode("$<")
+                .endControlFlow();
+        if (consolidated) {
+            builder.endControlFlow();
+        }
+        return builder.beginControlFlow("if ($N.compareAndSet(index, null, updater))", updatersField)
+                .addStatement("return updater")
+                .endControlFlow()
+                .addStatement("return $N.get(index)", updatersField)
+                .build();
+    }
+
+    private MethodSpec generatePutMethod(FieldSpec typesField, FieldSpec ordinalsField) {
+        final ParameterSpec typeParam = ParameterSpec.builder(
+                ParameterizedTypeName.get(ClassName.get(Class.class), TypeVariableName.get("?")), "type").build();
+        final ParameterSpec ordinalParam = ParameterSpec.builder(TypeName.INT, "ordinal").build();
+        return MethodSpec.methodBuilder("put")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(typeParam)
+                .addParameter(ordinalParam)
+                .addStatement("final int mask = $N.length - 1", typesField)
+                .addStatement("int index = $T.identityHashCode($N) & mask", System.class, typeParam)
+                .beginControlFlow("while ($N[index] != null)", typesField)
+                .addStatement("index = (index + 1) & mask")
+                .endControlFlow()
+                .addStatement("$N[index] = $N", typesField, typeParam)
+                .addStatement("$N[index] = $N", ordinalsField, ordinalParam)
+                .build();
+    }
+
+    private MethodSpec generateGetUpdaterMethod(FieldSpec typesField, FieldSpec updatersField,
+                                                MethodSpec createMethod, MethodSpec notFoundMethod) {
         TypeVariableName typeVariableName = TypeVariableName.get("T");
         ParameterizedTypeName returnType = ParameterizedTypeName.get(ClassName.get(Updater.class), typeVariableName);
         ParameterSpec parameterSpec = ParameterSpec.builder(
@@ -69,7 +319,6 @@ public class ManagerGenerator {
                 "tClass"
         ).build();
 
-        final String returnVariableName = "updater";
         return MethodSpec.methodBuilder("getUpdater")
                 .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
                         .addMember("value", "$S", "unchecked")
@@ -78,34 +327,169 @@ public class ManagerGenerator {
                 .addTypeVariable(typeVariableName)
                 .addParameter(parameterSpec)
                 .returns(returnType)
-                .addStatement("$T $N = ($T)$N.get($N)", returnType, returnVariableName, returnType, mapField, parameterSpec)
-                .beginControlFlow("if ($N == null)", returnVariableName)
-                .addStatement("throw new $T(\"Updater for $N not found\")", RuntimeException.class, parameterSpec)
+                .beginControlFlow("if ($N == null)", parameterSpec)
+                .addStatement("throw new $T(\"$N must not be null\")", IllegalArgumentException.class, parameterSpec)
                 .endControlFlow()
-                .addStatement("return updater")
+                .addStatement("final $T<?>[] types = $N", Class.class, typesField)
+                .addStatement("final int mask = types.length - 1")
+                .addStatement("int index = $T.identityHashCode($N) & mask", System.class, parameterSpec)
+                .addStatement("$T<?> type", Class.class)
+                .beginControlFlow("while ((type = types[index]) != $N)", parameterSpec)
+                .beginControlFlow("if (type == null)")
+                .addStatement("throw $N($N)", notFoundMethod, parameterSpec)
+                .endControlFlow()
+                .addStatement("index = (index + 1) & mask")
+                .endControlFlow()
+                .addStatement("$T<?> updater = $N.get(index)", Updater.class, updatersField)
+                .beginControlFlow("if (updater == null)")
+                .addStatement("updater = $N(index)", createMethod)
+                .endControlFlow()
+                .addStatement("return ($T) updater", returnType)
                 .build();
     }
 
-    private TypeSpec generateTypeSpec() {
-        FieldSpec mapField = generateMapField();
-        return TypeSpec.classBuilder(sMANAGER_NAME)
+    /**
+     * Generate method getAccessor, which shares the lookup of getUpdater since updaters are the accessors
+     */
+    private MethodSpec generateGetAccessorMethod() {
+        TypeVariableName typeVariableName = TypeVariableName.get("T");
+        ParameterizedTypeName returnType = ParameterizedTypeName.get(mFieldAccessor, typeVariableName);
+        ParameterSpec parameterSpec = ParameterSpec.builder(
+                ParameterizedTypeName.get(ClassName.get(Class.class), typeVariableName),
+                "tClass"
+        ).build();
+        return MethodSpec.methodBuilder("getAccessor")
+                .addJavadoc("Accessor of updatable fields of given type, which replaces reflection in generic tooling\n")
+                .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+                        .addMember("value", "$S", "unchecked")
+                        .build())
+                .addModifiers(Modifier.PUBLIC)
+                .addTypeVariable(typeVariableName)
+                .addParameter(parameterSpec)
+                .returns(returnType)
+                .addStatement("return ($T) getUpdater($N)", returnType, parameterSpec)
+                .build();
+    }
+
+    /**
+     * Generate the updater of consolidated mode, whose method update casts entities to the type given by its ordinal
+     * and calls the static update method of that type. Ordinals are those of method create.
+     */
+    private TypeSpec generateDispatcherType() {
+        final ClassName managerName = ClassName.get(mPackageElement.getQualifiedName().toString(), mClassName);
+        final FieldSpec typeField = FieldSpec.builder(TypeName.INT, "mType", Modifier.PRIVATE, Modifier.FINAL).build();
+        final ParameterSpec oldParam = ParameterSpec.builder(Object.class, "oldEntity", Modifier.FINAL).build();
+        final ParameterSpec newParam = ParameterSpec.builder(Object.class, "newEntity", Modifier.FINAL).build();
+        final MethodSpec.Builder update = MethodSpec.methodBuilder("update")
+                .addAnnotation(Override.class)
                 .addModifiers(Modifier.PUBLIC)
-                .addSuperinterface(UpdaterManager.class)
-                .addField(mapField)
-                .addMethod(generateConstructor(mapField))
-                .addMethod(generateGetUpdaterMethod(mapField))
+                .addParameter(oldParam)
+                .addParameter(newParam)
+                .beginControlFlow("switch ($N)", typeField);
+        int ordinal = mEntityUpdaterMap.size();
+        for (final Map.Entry<TypeElement, MethodSpec> entry : mEntityMethodMap.entrySet()) {
+            final ClassName entityType = ClassName.get(entry.getKey());
+            update.addCode("case $L:\n$>", ordinal++)
+                    .addStatement("$T.$N(($T) $N, ($T) $N)", managerName, entry.getValue(), entityType, oldParam, entityType, newParam)
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        update.addCode("default:\n$>")
+                .addStatement("throw new $T()", AssertionError.class)
+                .addCode("$<")
+                .endControlFlow();
+        return TypeSpec.classBuilder(sDISPATCHER)
+                .addJavadoc("Updater of every entity type, told apart by the ordinal of the type\n")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .addSuperinterface(ParameterizedTypeName.get(ClassName.get(Updater.class), ClassName.OBJECT))
+                .addField(typeField)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(TypeName.INT, "type")
+                        .addStatement("$N = type", typeField)
+                        .build())
+                .addMethod(update.build())
+                .build();
+    }
+
+    /**
+     * The exception is created out of line to keep getUpdater small enough to be inlined
+     */
+    private MethodSpec generateNotFoundMethod() {
+        ParameterSpec parameterSpec = ParameterSpec.builder(
+                ParameterizedTypeName.get(ClassName.get(Class.class), TypeVariableName.get("?")),
+                "tClass"
+        ).build();
+        return MethodSpec.methodBuilder("notFound")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(parameterSpec)
+                .returns(RuntimeException.class)
+                .addStatement("return new $T(\"Updater for \" + $N + \" not found\")", RuntimeException.class, parameterSpec)
                 .build();
     }
 
+    private TypeSpec generateTypeSpec() {
+        FieldSpec typesField = generateTypesField();
+        FieldSpec ordinalsField = generateOrdinalsField();
+        FieldSpec updatersField = generateUpdatersField();
+        MethodSpec putMethod = generatePutMethod(typesField, ordinalsField);
+        List<FieldSpec> shardFields = new ArrayList<>();
+        List<MethodSpec> shardMethods = new ArrayList<>();
+        for (final ClassName shard : mShardTypesMap.keySet()) {
+            final FieldSpec shardField = generateShardField(shard, shardFields.size());
+            shardMethods.add(generateShardMethod(shard, shardField, shardFields.size()));
+            shardFields.add(shardField);
+        }
+        MethodSpec createMethod = generateCreateMethod(typesField, ordinalsField, updatersField, shardMethods);
+        MethodSpec notFoundMethod = generateNotFoundMethod();
+        TypeSpec.Builder builder = TypeSpec.classBuilder(mClassName)
+                .addModifiers(Modifier.PUBLIC)
+                .addSuperinterface(UpdaterManager.class);
+        if (mIsShard) {
+            builder.addField(generateShardTypesField());
+        }
+        for (final FieldSpec shardField : shardFields) {
+            builder.addField(shardField);
+        }
+        builder.addField(typesField)
+                .addField(ordinalsField)
+                .addField(updatersField)
+                .addMethod(generateConstructor(putMethod))
+                .addMethod(generateGetUpdaterMethod(typesField, updatersField, createMethod, notFoundMethod))
+                .addMethod(putMethod)
+                .addMethod(createMethod)
+                .addMethod(notFoundMethod);
+        if (mFieldAccessor != null) {
+            builder.addMethod(generateGetAccessorMethod());
+        }
+        for (final MethodSpec shardMethod : shardMethods) {
+            builder.addMethod(shardMethod);
+        }
+        if (!mEntityMethodMap.isEmpty()) {
+            for (final MethodSpec updateMethod : mEntityMethodMap.values()) {
+                builder.addMethod(updateMethod);
+            }
+            builder.addType(generateDispatcherType());
+        }
+        return builder.build();
+    }
+
     private JavaFile generateJavaFile() {
         return JavaFile.builder(mPackageElement.getQualifiedName().toString(),
                 generateTypeSpec())
                 .build();
     }
 
+    /**
+     * Write generated source, all updaters and entity types of consolidated mode are given as originating elements,
+     * as required by aggregating incremental processing
+     */
     public void writeToSource(ProcessingEnvironment processingEnvironment) throws IOException {
         JavaFile javaFile = generateJavaFile();
-        JavaFileObject jfo = processingEnvironment.getFiler().createSourceFile(sMANAGER_NAME, mPackageElement);
+        final List<Element> originatingElements = new ArrayList<Element>(mEntityUpdaterMap.values());
+        originatingElements.addAll(mEntityMethodMap.keySet());
+        JavaFileObject jfo = processingEnvironment.getFiler().createSourceFile(
+                mPackageElement.getQualifiedName() + "." + mClassName,
+                originatingElements.toArray(new Element[originatingElements.size()]));
         try (Writer writer = jfo.openWriter()) {
             javaFile.writeTo(writer);
         }
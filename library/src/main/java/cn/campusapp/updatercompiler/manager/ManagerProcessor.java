@@ -1,32 +1,83 @@
 package cn.campusapp.updatercompiler.manager;
 
 import com.google.auto.service.AutoService;
+import com.squareup.javapoet.ClassName;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.MirroredTypeException;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.ElementFilter;
 import javax.tools.Diagnostic;
 
+import cn.campusapp.updater.Updatable;
 import cn.campusapp.updater.UpdaterManager;
 
 /**
  * A processor to generate UpdaterManager instance.
+ * <p/>
+ * By default UpdaterManagerImpl is generated, which also delegates to the index of every module found on classpath.
+ * If option {@link #OPTION_MODULE} is given, only the index of this module is generated, so that several modules
+ * with updatable entities can be compiled separately without class name clash.
+ * <p/>
+ * Module indexes are discovered at compile time, on the compile classpath of the application module, and the manager
+ * references them directly. A module only on the runtime classpath, such as a runtimeOnly dependency or a dynamic
+ * feature module, is not found, and its types are reported as not found by the manager. Indexes are in package
+ * cn.campusapp.updater like the pojo-updater artifact, which is a split package under the Java module system.
+ * <p/>
+ * The source is written in the first round in which no more updater is pending, so updaters generated
+ * in earlier rounds are all included and the file is never created twice. Updaters seen in that round are included
+ * too, so the manager is not left to the last round, whose generated files could not be referenced by sources.
+ * The processor is registered as aggregating for Gradle incremental annotation processing.
+ * <p/>
+ * If option {@link #OPTION_CONSOLIDATED} is given, the manager is written by the updater processor instead,
+ * and this processor does nothing.
  * Created by chen on 16/1/7.
  */
 @SuppressWarnings("UnusedDeclaration")
 @AutoService(Processor.class)
 public class ManagerProcessor extends AbstractProcessor {
+    /**
+     * Processor option, name of current module
+     */
+    public static final String OPTION_MODULE = "updaterModule";
+    /**
+     * Processor option, if "true" updaters implement FieldAccessor and the manager gets method getAccessor.
+     * It is read by the updater processor too, and must be given to every module of an application.
+     */
+    public static final String OPTION_ACCESSORS = "updaterAccessors";
+    /**
+     * Processor option, if "true" no updater class is generated per entity type. The manager, or the module index,
+     * holds a static update method per type and a single updater class dispatching to them, which saves
+     * dex size and class loading. It is read by the updater processor, which writes the manager in this mode.
+     */
+    public static final String OPTION_CONSOLIDATED = "updaterConsolidated";
+    /**
+     * The interface implemented by updaters if option {@link #OPTION_ACCESSORS} is given, shipped by the runtime artifact
+     */
+    public static final ClassName FIELD_ACCESSOR = ClassName.get(UpdaterManager.class.getPackage().getName(), "FieldAccessor");
+    /**
+     * Prefix of the class name of module indexes
+     */
+    private static final String sSHARD_PREFIX = "UpdaterIndex_";
+
+    private ManagerGenerator mGenerator;
+    private boolean mIsWritten;
+
     private static TypeMirror getAnnotationValue(UpdaterManager.ManagedUpdater updaterAnnotation) {
         try {
             updaterAnnotation.value();
@@ -36,9 +87,20 @@ public class ManagerProcessor extends AbstractProcessor {
         throw new AssertionError();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>Only {@link Updatable} and {@link UpdaterManager.ManagedUpdater} are supported. Gradle reprocesses every source
+     * carrying an annotation supported by an aggregating processor on each incremental build, so supporting all
+     * annotations would reprocess the whole module. A module without updatable entity therefore gets no manager.
+     */
     @Override
     public Set<String> getSupportedAnnotationTypes() {
-        return Collections.singleton(UpdaterManager.ManagedUpdater.class.getCanonicalName());
+        return new HashSet<>(Arrays.asList(Updatable.class.getCanonicalName(), UpdaterManager.ManagedUpdater.class.getCanonicalName()));
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return new HashSet<>(Arrays.asList(OPTION_MODULE, OPTION_ACCESSORS, OPTION_CONSOLIDATED));
     }
 
     @Override
@@ -48,30 +110,118 @@ public class ManagerProcessor extends AbstractProcessor {
 
     /**
      * {@inheritDoc}
-     * <p/>Handle only TypeElements which are annotated with {@link UpdaterManager.ManagedUpdater}
+     * <p/>Handle only TypeElements which are annotated with {@link UpdaterManager.ManagedUpdater}.
+     * No annotation is claimed, {@link Updatable} is claimed by the updater processor.
      */
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_CONSOLIDATED))) {
+            return false;
+        }
         Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(UpdaterManager.ManagedUpdater.class);
         Set<TypeElement> updaterClasses = ElementFilter.typesIn(elements);
-        if (updaterClasses.isEmpty()) {
+        if (mIsWritten) {
+            for (final TypeElement updaterClass : updaterClasses) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Updater generated after updater manager was written", updaterClass);
+            }
             return false;
         }
-
-        PackageElement packageElement = processingEnv.getElementUtils().getPackageElement(UpdaterManager.class.getPackage().getName());
-        final ManagerGenerator generator = new ManagerGenerator(packageElement);
+        if (mGenerator == null) {
+            mGenerator = createGenerator(processingEnv);
+        }
 
         for (final TypeElement updaterClass : updaterClasses) {
             final UpdaterManager.ManagedUpdater managedUpdater = updaterClass.getAnnotation(UpdaterManager.ManagedUpdater.class);
             TypeMirror typeMirror = getAnnotationValue(managedUpdater);
-            generator.put(typeMirror, updaterClass);
+            mGenerator.put(typeMirror, updaterClass);
+        }
+
+        /**
+         * Updaters of updatable entities in this round are generated in next round, wait for them.
+         * Updaters generated in this round are already put, so the manager is written now rather than
+         * in the last round, whose generated sources are not compiled with the sources referencing them.
+         */
+        final boolean isPending = !roundEnv.getElementsAnnotatedWith(Updatable.class).isEmpty();
+        if (isPending || mGenerator.isEmpty()) {
+            return false;
         }
 
         try {
-            generator.writeToSource(processingEnv);
+            mGenerator.writeToSource(processingEnv);
         } catch (IOException e) {
             processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate updater manager" + e.toString());
         }
-        return true;
+        mIsWritten = true;
+        return false;
+    }
+
+    /**
+     * Create the generator of module index if option {@link #OPTION_MODULE} is given,
+     * otherwise create the generator of UpdaterManagerImpl with indexes found on the compile classpath.
+     * The updater processor uses it to write the manager in consolidated mode.
+     */
+    public static ManagerGenerator createGenerator(ProcessingEnvironment processingEnv) {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageElement(UpdaterManager.class.getPackage().getName());
+        final String module = processingEnv.getOptions().get(OPTION_MODULE);
+        if (module != null) {
+            return new ManagerGenerator(packageElement, sSHARD_PREFIX + toIdentifier(module), true);
+        }
+
+        final ManagerGenerator generator = new ManagerGenerator(packageElement);
+        if (Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_ACCESSORS))
+                && !Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_CONSOLIDATED))) {
+            generator.setFieldAccessor(FIELD_ACCESSOR);
+        }
+        for (final TypeElement shard : ElementFilter.typesIn(packageElement.getEnclosedElements())) {
+            if (!shard.getSimpleName().toString().startsWith(sSHARD_PREFIX)) {
+                continue;
+            }
+            final List<ClassName> entityTypes = getShardTypes(processingEnv, shard);
+            if (entityTypes != null) {
+                generator.putShard(ClassName.get(shard), entityTypes);
+            }
+        }
+        return generator;
+    }
+
+    /**
+     * Read entity types listed by a module index
+     *
+     * @param processingEnv the processing environment
+     * @param shard         the module index
+     * @return the entity types, or null if the shard is malformed
+     */
+    private static List<ClassName> getShardTypes(ProcessingEnvironment processingEnv, TypeElement shard) {
+        for (final VariableElement field : ElementFilter.fieldsIn(shard.getEnclosedElements())) {
+            if (!field.getSimpleName().contentEquals(ManagerGenerator.TYPES) || !(field.getConstantValue() instanceof String)) {
+                continue;
+            }
+            final List<ClassName> entityTypes = new ArrayList<>();
+            for (final String typeName : ((String) field.getConstantValue()).split(",")) {
+                final TypeElement entityType = processingEnv.getElementUtils().getTypeElement(typeName);
+                if (entityType == null) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                            "Entity type " + typeName + " listed by " + shard + " not found", shard);
+                } else {
+                    entityTypes.add(ClassName.get(entityType));
+                }
+            }
+            return entityTypes;
+        }
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Ignore malformed updater index " + shard, shard);
+        return null;
+    }
+
+    /**
+     * Replace characters not allowed in java identifier by underscore
+     */
+    private static String toIdentifier(String name) {
+        final StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            builder.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return builder.toString();
     }
 }
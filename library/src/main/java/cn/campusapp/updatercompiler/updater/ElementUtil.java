@@ -1,16 +1,22 @@
 package cn.campusapp.updatercompiler.updater;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Name;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 
 /**
  * A collection of some useful methods while processing {@link Element}
@@ -24,17 +30,50 @@ final class ElementUtil {
     private ElementUtil() {
     }
 
+    /**
+     * Index methods by name, so getters and setters are found without scanning all methods for every field.
+     * If several methods have the same name, the first one is kept.
+     *
+     * @param methods the methods to index, in the order of precedence
+     * @return methods keyed by simple name
+     */
+    static Map<String, ExecutableElement> indexMethods(final List<ExecutableElement> methods) {
+        final Map<String, ExecutableElement> index = new HashMap<>(methods.size() * 4 / 3 + 1);
+        for (final ExecutableElement method : methods) {
+            final String name = method.getSimpleName().toString();
+            if (!index.containsKey(name)) {
+                index.put(name, method);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Capitalized name of the property of a field, which is used in names of getter and setter.
+     * For example, Name for mName or name, and Vip for boolean mIsVip or isVip.
+     *
+     * @param field the field
+     * @return the property name
+     */
+    static CharSequence propertyName(final VariableElement field) {
+        final Name fieldName = field.getSimpleName();
+        final Matcher matcher = field.asType().getKind() == TypeKind.BOOLEAN
+                ? sBOOLEAN_FIELD.matcher(fieldName)
+                : sFIELD_START_WITH_M.matcher(fieldName);
+        return matcher.find() ? matcher.group("name") : capitalizeFirstLetter(fieldName);
+    }
+
     /**
      * For specified field, try to find its getter/setter in given methods.
      *
      * @param field        in-parameter, the specified field
-     * @param methods      in-parameter, the given method list in which we try to find getter and setter
+     * @param methodIndex  in-parameter, the given methods keyed by name, see {@link #indexMethods(List)}
      * @param getterSetter out-parameter, array of type {@link ExecutableElement} which is used to pass getter/setter out
      * @return true if both getter and setter are found, otherwise false
      * @throws IllegalArgumentException if getterSetter is null or its length is not 2
      */
     static boolean findGetterSetter(/*in*/final VariableElement field,
-                                    /*in*/final List<ExecutableElement> methods,
+                                    /*in*/final Map<String, ExecutableElement> methodIndex,
                                     /*out*/final ExecutableElement[] getterSetter) {
         if (getterSetter == null || getterSetter.length != 2) {
             throw new IllegalArgumentException("Size of out param getterSetter must be 2");
@@ -42,33 +81,33 @@ final class ElementUtil {
         final boolean isBoolean = field.asType().getKind() == TypeKind.BOOLEAN;
         final String getterPrefix = isBoolean ? "is" : "get";
         final String setterPrefix = "set";
+        final CharSequence propertyName = propertyName(field);
 
-        Name fieldName = field.getSimpleName();
-        Matcher matcher = isBoolean ? sBOOLEAN_FIELD.matcher(fieldName) : sFIELD_START_WITH_M.matcher(fieldName);
-        CharSequence qualifiedName;
-        if (matcher.find()) {
-            qualifiedName = matcher.group("name");
-        } else {
-            qualifiedName = capitalizeFirstLetter(fieldName);
-        }
-
-        final String getterName = getterPrefix + qualifiedName;
-        final String setterName = setterPrefix + qualifiedName;
+        getterSetter[0] = methodIndex.get(getterPrefix + propertyName);
+        getterSetter[1] = methodIndex.get(setterPrefix + propertyName);
+        return getterSetter[0] != null && getterSetter[1] != null;
+    }
 
-        boolean getterFound = false;
-        boolean setterFound = false;
-        for (int i = 0; i < methods.size() && !(getterFound && setterFound); i++) {
-            final ExecutableElement method = methods.get(i);
-            if (!getterFound && method.getSimpleName().contentEquals(getterName)) {
-                getterSetter[0] = method;
-                getterFound = true;
-            } else if (!setterFound && method.getSimpleName().contentEquals(setterName)) {
-                getterSetter[1] = method;
-                setterFound = true;
+    /**
+     * For specified field, try to find its setter of a builder in given methods,
+     * which is named as the property itself, or prefixed with "set" or "with"
+     *
+     * @param field   the specified field
+     * @param methods instance methods of the builder
+     * @return the setter taking exactly one parameter, or null if not found
+     */
+    static ExecutableElement findBuilderSetter(final VariableElement field, final List<ExecutableElement> methods) {
+        final Matcher matcher = sFIELD_START_WITH_M.matcher(field.getSimpleName());
+        final CharSequence capitalized = matcher.find() ? matcher.group("name") : capitalizeFirstLetter(field.getSimpleName());
+        final String property = Character.toLowerCase(capitalized.charAt(0)) + capitalized.toString().substring(1);
+        for (final String name : new String[]{property, "set" + capitalized, "with" + capitalized}) {
+            for (final ExecutableElement method : methods) {
+                if (method.getSimpleName().contentEquals(name) && method.getParameters().size() == 1) {
+                    return method;
+                }
             }
         }
-
-        return getterFound && setterFound;
+        return null;
     }
 
     /**
@@ -88,7 +127,70 @@ final class ElementUtil {
         }
     }
 
-    static boolean isAnnotationPresent(VariableElement element, String annotationName) {
+    /**
+     * Convert a field name to the name of a constant, the leading 'm' is dropped.
+     * For example, mUserName is converted to USER_NAME.
+     *
+     * @param fieldName name of the field
+     * @return name in upper case, words are separated by underscore
+     */
+    static String constantName(final CharSequence fieldName) {
+        Matcher matcher = sFIELD_START_WITH_M.matcher(fieldName);
+        final String name = matcher.find() ? matcher.group("name") : fieldName.toString();
+        final StringBuilder builder = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (i > 0 && Character.isUpperCase(c) && !Character.isUpperCase(name.charAt(i - 1)) && name.charAt(i - 1) != '_') {
+                builder.append('_');
+            }
+            builder.append(Character.toUpperCase(c));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Whether a type is, extends or implements the type of given qualified name
+     *
+     * @param typeElement   the type to check
+     * @param qualifiedName qualified name of the supertype
+     */
+    static boolean isSubtypeOf(final TypeElement typeElement, final String qualifiedName) {
+        if (typeElement.getQualifiedName().contentEquals(qualifiedName)) {
+            return true;
+        }
+        final TypeMirror superclass = typeElement.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED && isSubtypeOf((TypeElement) ((DeclaredType) superclass).asElement(), qualifiedName)) {
+            return true;
+        }
+        for (final TypeMirror anInterface : typeElement.getInterfaces()) {
+            if (isSubtypeOf((TypeElement) ((DeclaredType) anInterface).asElement(), qualifiedName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the field of a type or its superclasses which is annotated with given annotation
+     *
+     * @param typeElement    the type to search in
+     * @param annotationName qualified name of the annotation
+     * @return the field, or null if not found
+     */
+    static VariableElement findAnnotatedField(final TypeElement typeElement, final String annotationName) {
+        for (final VariableElement field : ElementFilter.fieldsIn(typeElement.getEnclosedElements())) {
+            if (isAnnotationPresent(field, annotationName)) {
+                return field;
+            }
+        }
+        final TypeMirror superclass = typeElement.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            return findAnnotatedField((TypeElement) ((DeclaredType) superclass).asElement(), annotationName);
+        }
+        return null;
+    }
+
+    static boolean isAnnotationPresent(Element element, String annotationName) {
         List<? extends AnnotationMirror> annotationMirrors = element.getAnnotationMirrors();
         for (final AnnotationMirror annotationMirror : annotationMirrors) {
             if (((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
@@ -97,4 +199,25 @@ final class ElementUtil {
         }
         return false;
     }
+
+    /**
+     * Read member value of an annotation on an element
+     *
+     * @param element        the annotated element
+     * @param annotationName qualified name of the annotation
+     * @return the value of member value, null if the annotation is not present
+     */
+    static Object getAnnotationValue(Element element, String annotationName) {
+        for (final AnnotationMirror annotationMirror : element.getAnnotationMirrors()) {
+            if (!((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
+                continue;
+            }
+            for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotationMirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("value")) {
+                    return entry.getValue().getValue();
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -1,6 +1,7 @@
 package cn.campusapp.updatercompiler.updater;
 
 import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ArrayTypeName;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
@@ -14,22 +15,45 @@ import com.squareup.javapoet.TypeVariableName;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import javax.annotation.Generated;
 import javax.annotation.processing.Filer;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 import javax.tools.JavaFileObject;
 
+import cn.campusapp.updater.Updatable;
 import cn.campusapp.updater.Updater;
 import cn.campusapp.updater.UpdaterManager;
 
@@ -42,6 +66,105 @@ import cn.campusapp.updater.UpdaterManager;
  * Created by chen on 16/1/6.
  */
 public class UpdaterGenerator {
+    /**
+     * Name of the generated constant holding the number of updatable fields. It is outside of the FIELD_* names of
+     * index constants, so a field named count gets FIELD_COUNT.
+     */
+    private static final String sCOUNT_FIELDS = "COUNT_FIELDS";
+    /**
+     * A change mask wider than this is returned as long[] instead of long
+     */
+    private static final int sMAX_NARROW_MASK_WIDTH = Long.SIZE;
+    /**
+     * Name of the generated result type of method mergeAll
+     */
+    private static final String sMERGE_RESULT = "MergeResult";
+    /**
+     * Name of the generated canonicalising cache, see {@link #generateCacheType()}
+     */
+    private static final String sCACHE = "Cache";
+    /**
+     * Simple name of the weak reference to a canonical instance which remembers its key, nested in {@link #sCACHE}
+     */
+    private static final String sWEAK_VALUE = "WeakValue";
+    /**
+     * Name of the loop variable in generated methods iterating over entities
+     */
+    private static final String sENTITY = "entity";
+    /**
+     * Simple name of the nested patch type, see {@link #generatePatchType()}
+     */
+    private static final String sPATCH = "Patch";
+    /**
+     * Name of the patch array holding values of reference types
+     */
+    private static final String sPATCH_OBJECTS = "objects";
+    /**
+     * Name of the private method recording previous values for listeners, see {@link #generateRecordMethod()}
+     */
+    private static final String sRECORD = "record";
+    /**
+     * Name of the field updater of the sequence field in seqlock mode, see {@link #generateSequenceUpdater()}
+     */
+    private static final String sSEQUENCE = "sSEQUENCE";
+    /**
+     * Simple name of the nested listener interface, see {@link #setObserved()}
+     */
+    private static final String sLISTENER = "Listener";
+    /**
+     * Name of the buffer parameter of methods writeDelta and readDelta
+     */
+    private static final String sBUFFER = "buffer";
+    /**
+     * Name of the private method which writes fields when metrics or listeners are on,
+     * see {@link #setMetricsSink(ClassName, boolean)} and {@link #setObserved()}
+     */
+    private static final String sUPDATE_FIELDS = "updateFields";
+    /**
+     * Name of the private method writing fields and recording them in a journal, wrapped like {@link #sUPDATE_FIELDS}
+     */
+    private static final String sJOURNAL_FIELDS = "journalFields";
+    /**
+     * Primitive types, used to recognize boxed types
+     */
+    private static final TypeName[] sPRIMITIVE_TYPES = {
+            TypeName.BOOLEAN, TypeName.BYTE, TypeName.SHORT, TypeName.INT, TypeName.LONG, TypeName.CHAR, TypeName.FLOAT, TypeName.DOUBLE
+    };
+    /**
+     * How a field is encoded by writeDelta, decided by its type. Fields of other types are not encoded.
+     */
+    private static final int sCODEC_NONE = 0;
+    private static final int sCODEC_PRIMITIVE = 1;
+    private static final int sCODEC_BOXED = 2;
+    private static final int sCODEC_STRING = 3;
+    private static final int sCODEC_ENUM = 4;
+    /**
+     * Flag of field: write the field only if new value differs from old value
+     */
+    public static final int FLAG_SKIP_UNCHANGED = 1;
+    /**
+     * Flag of field: compare non-primitive values by {@link Object#equals(Object)} instead of ==
+     */
+    public static final int FLAG_COMPARE_BY_EQUALS = 1 << 1;
+    /**
+     * Flag of field: if the field type is {@link Updatable}, merge new value into old value by its updater
+     * instead of replacing the reference
+     */
+    public static final int FLAG_MERGE_NESTED = 1 << 2;
+    /**
+     * Flag of field: if the field is an array, collection or map, copy new content into old container
+     * instead of replacing the reference
+     */
+    public static final int FLAG_MERGE_IN_PLACE = 1 << 3;
+    /**
+     * Merge kinds of field, decided by flags and field type
+     */
+    private static final int sMERGE_NONE = 0;
+    private static final int sMERGE_NESTED = 1;
+    private static final int sMERGE_ARRAY = 2;
+    private static final int sMERGE_COLLECTION = 3;
+    private static final int sMERGE_LIST_BY_KEY = 4;
+    private static final int sMERGE_MAP = 5;
     /**
      * Definition of first parameter of method {@link Updater#update(Object, Object)}
      */
@@ -73,6 +196,95 @@ public class UpdaterGenerator {
     private final AnnotationSpec mUpdaterAnnotation;
     private final boolean mIsTopClass;
     private final boolean mIsStatic;
+    /**
+     * The entity class, which is the only originating element of generated file
+     */
+    private final TypeElement mTypeElement;
+    /**
+     * Name of the entity class
+     */
+    private final ClassName mEntityClassName;
+    /**
+     * The identity key of entities, null if no field is marked as key
+     */
+    private Field mKeyField;
+    /**
+     * The sequence counter of entities, null unless the seqlock mode is on, see {@link #setSequence(VariableElement)}
+     */
+    private FieldSpec mSequenceField;
+    /**
+     * The class declaring the sequence field, which may be a superclass of the entity
+     */
+    private ClassName mSequenceOwner;
+    /**
+     * The monotonic version of entities, null if no field is marked as version, see {@link #setVersion(VariableElement, ExecutableElement)}
+     */
+    private Field mVersionField;
+    /**
+     * Fields passed to the constructor or builder by method merge, in the order of constructor parameters
+     */
+    private final List<Field> mImmutableFields = new ArrayList<>();
+    /**
+     * The all-fields constructor, or the static method creating a builder, null if method merge is not generated
+     */
+    private ExecutableElement mFactory;
+    /**
+     * Setters of the builder in the order of {@link #mImmutableFields}, and the method building the entity
+     */
+    private List<ExecutableElement> mBuilderSetters;
+    private ExecutableElement mBuildMethod;
+    /**
+     * The class whose static method onUpdate receives metrics of updates, null if metrics are off
+     */
+    private ClassName mMetricsSink;
+    /**
+     * Whether the duration of updates is measured for {@link #mMetricsSink}
+     */
+    private boolean mIsMetricsTimed;
+    /**
+     * Whether listeners can be registered to be notified of changed fields
+     */
+    private boolean mIsObserved;
+    /**
+     * The token reader interface, null unless method readTokens is generated, see {@link #setStreamed(ClassName)}
+     */
+    private ClassName mTokenReader;
+    /**
+     * The field accessor interface implemented by the updater, null unless set by {@link #setFieldAccessor(ClassName)}
+     */
+    private ClassName mFieldAccessor;
+    /**
+     * Whether the update overloads taking a field mask are generated, see {@link #setMasked()}
+     */
+    private boolean mIsMasked;
+    /**
+     * Whether writeDelta and readDelta are generated, see {@link #setDeltaEncoded()}
+     */
+    private boolean mIsDeltaEncoded;
+    /**
+     * Whether diff and apply are generated, see {@link #setDiffed()}
+     */
+    private boolean mIsDiffed;
+    /**
+     * Whether updates can be journaled to be rolled back, see {@link #setJournaled()}
+     */
+    private boolean mIsJournaled;
+    /**
+     * Whether only the static update method for the consolidated registry is generated, see {@link #setConsolidated()}
+     */
+    private boolean mIsConsolidated;
+    /**
+     * JSON names of fields which differ from field names, keyed by field name
+     */
+    private final Map<String, String> mSerializedNames = new HashMap<>();
+    /**
+     * Updaters of nested updatable fields, and the static fields holding their instances
+     */
+    private final Map<ClassName, FieldSpec> mNestedUpdaters = new LinkedHashMap<>();
+    /**
+     * Names of the generated field index constants, used to avoid name clashes
+     */
+    private final Set<String> mIndexNames = new HashSet<>();
 
     /**
      * Initialize necessary fields
@@ -82,8 +294,10 @@ public class UpdaterGenerator {
      */
     public UpdaterGenerator(PackageElement packageElement, TypeElement typeElement) {
         mPackageElement = packageElement;
+        mTypeElement = typeElement;
 
         final ClassName entityClassName = ClassName.get(typeElement);
+        mEntityClassName = entityClassName;
         /**
          * Generate parameter definitions of method {@link Updater#update(Object, Object)}
          */
@@ -103,70 +317,2087 @@ public class UpdaterGenerator {
         mIsTopClass = typeElement.getNestingKind() == NestingKind.TOP_LEVEL;
         mIsStatic = typeElement.getModifiers().contains(Modifier.STATIC);
 
-        mUpdaterAnnotation = AnnotationSpec.builder(UpdaterManager.ManagedUpdater.class)
-                .addMember("value", "$T.class", typeElement)
+        mUpdaterAnnotation = AnnotationSpec.builder(UpdaterManager.ManagedUpdater.class)
+                .addMember("value", "$T.class", typeElement)
+                .build();
+    }
+
+    /**
+     * Add a field for which we should generate update statement
+     *
+     * @param field Declaration of a field
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public UpdaterGenerator addField(VariableElement field) {
+        return addField(field, false);
+    }
+
+
+    /**
+     * Add a field for which we should generate update statement
+     *
+     * @param field    Declaration of a field
+     * @param omitNull Whether or not should null value be ignored when updating this field
+     */
+    public UpdaterGenerator addField(VariableElement field, boolean omitNull) {
+        return addField(field, omitNull, 0);
+    }
+
+    /**
+     * Add a field for which we should generate update statement
+     *
+     * @param field    Declaration of a field
+     * @param omitNull Whether or not should null value be ignored when updating this field
+     * @param flags    Bitwise or of FLAG_* constants
+     */
+    public UpdaterGenerator addField(VariableElement field, boolean omitNull, int flags) {
+        return addField(field, field.asType(), omitNull, flags);
+    }
+
+    /**
+     * Add a field for which we should generate update statement
+     *
+     * @param field     Declaration of a field
+     * @param fieldType Type of the field as a member of the entity, which differs from the declared type
+     *                  if the field is inherited from a generic superclass
+     * @param omitNull  Whether or not should null value be ignored when updating this field
+     * @param flags     Bitwise or of FLAG_* constants
+     */
+    public UpdaterGenerator addField(VariableElement field, TypeMirror fieldType, boolean omitNull, int flags) {
+        return add(Field.get(field, fieldType, omitNull, flags, mFieldSpecList.size(), nextIndexName(field)), fieldType);
+    }
+
+    /**
+     * Add a property, the getter and setter will be used in its update statement
+     *
+     * @param property Declaration of a field
+     * @param getter   Declaration of the field's getter method
+     * @param setter   Declaration of the field's setter method
+     * @param omitNull Whether or not should null value be ignored when updating this field
+     */
+    public UpdaterGenerator addProperty(VariableElement property, ExecutableElement getter, ExecutableElement setter, boolean omitNull) {
+        return addProperty(property, getter, setter, omitNull, 0);
+    }
+
+    /**
+     * Add a property, the getter and setter will be used in its update statement
+     *
+     * @param property Declaration of a field
+     * @param getter   Declaration of the field's getter method
+     * @param setter   Declaration of the field's setter method
+     * @param omitNull Whether or not should null value be ignored when updating this field
+     * @param flags    Bitwise or of FLAG_* constants
+     */
+    public UpdaterGenerator addProperty(VariableElement property, ExecutableElement getter, ExecutableElement setter, boolean omitNull, int flags) {
+        return addProperty(property, property.asType(), getter, setter, omitNull, flags);
+    }
+
+    /**
+     * Add a property, the getter and setter will be used in its update statement
+     *
+     * @param property     Declaration of a field
+     * @param propertyType Type of the field as a member of the entity
+     * @param getter       Declaration of the field's getter method
+     * @param setter       Declaration of the field's setter method
+     * @param omitNull     Whether or not should null value be ignored when updating this field
+     * @param flags        Bitwise or of FLAG_* constants
+     */
+    public UpdaterGenerator addProperty(VariableElement property, TypeMirror propertyType, ExecutableElement getter, ExecutableElement setter,
+                                        boolean omitNull, int flags) {
+        return add(Property.get(property, propertyType, getter, setter, omitNull, flags, mFieldSpecList.size(), nextIndexName(property)), propertyType);
+    }
+
+    private UpdaterGenerator add(Field field, TypeMirror fieldType) {
+        if (field.hasFlag(FLAG_MERGE_NESTED)) {
+            field.mNestedUpdater = getNestedUpdater(fieldType);
+            if (field.mNestedUpdater != null) {
+                field.mMergeKind = sMERGE_NESTED;
+            }
+        }
+        if (field.mMergeKind == sMERGE_NONE && field.hasFlag(FLAG_MERGE_IN_PLACE)) {
+            setContainerMergeKind(field, fieldType);
+        }
+        setCodec(field, fieldType);
+        field.mRawType = rawType(fieldType);
+        mFieldSpecList.add(field);
+        return this;
+    }
+
+    /**
+     * Erasure of a field type, which is the type of its class literal. Type variables are erased to Object.
+     */
+    private static TypeName rawType(TypeMirror type) {
+        switch (type.getKind()) {
+            case DECLARED:
+                return ClassName.get((TypeElement) ((DeclaredType) type).asElement());
+            case ARRAY:
+                return ArrayTypeName.of(rawType(((ArrayType) type).getComponentType()));
+            case TYPEVAR:
+                return TypeName.OBJECT;
+            default:
+                return TypeName.get(type);
+        }
+    }
+
+    /**
+     * Decide how a field is encoded by writeDelta: primitives and their boxed types, strings and enums are supported
+     */
+    private static void setCodec(Field field, TypeMirror fieldType) {
+        if (fieldType.getKind().isPrimitive()) {
+            field.mCodec = sCODEC_PRIMITIVE;
+            field.mWireType = field.mFieldSpec.type;
+            return;
+        }
+        if (fieldType.getKind() != TypeKind.DECLARED) {
+            return;
+        }
+        final TypeElement typeElement = (TypeElement) ((DeclaredType) fieldType).asElement();
+        final String qualifiedName = typeElement.getQualifiedName().toString();
+        if (typeElement.getKind() == ElementKind.ENUM) {
+            field.mCodec = sCODEC_ENUM;
+        } else if (String.class.getCanonicalName().equals(qualifiedName)) {
+            field.mCodec = sCODEC_STRING;
+        } else {
+            for (TypeName primitiveType : sPRIMITIVE_TYPES) {
+                if (primitiveType.box().toString().equals(qualifiedName)) {
+                    field.mCodec = sCODEC_BOXED;
+                    field.mWireType = primitiveType;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decide how to merge a container field in place.
+     * A list of updatable entities with key is merged by key, other collections are refilled.
+     */
+    private void setContainerMergeKind(Field field, TypeMirror fieldType) {
+        if (fieldType.getKind() == TypeKind.ARRAY) {
+            field.mMergeKind = sMERGE_ARRAY;
+            return;
+        }
+        if (fieldType.getKind() != TypeKind.DECLARED) {
+            return;
+        }
+        final DeclaredType declaredType = (DeclaredType) fieldType;
+        final TypeElement typeElement = (TypeElement) declaredType.asElement();
+        if (ElementUtil.isSubtypeOf(typeElement, Map.class.getCanonicalName())) {
+            field.mMergeKind = sMERGE_MAP;
+        } else if (ElementUtil.isSubtypeOf(typeElement, Collection.class.getCanonicalName())) {
+            field.mMergeKind = sMERGE_COLLECTION;
+            final List<? extends TypeMirror> typeArguments = declaredType.getTypeArguments();
+            if (typeArguments.size() == 1 && ElementUtil.isSubtypeOf(typeElement, List.class.getCanonicalName())) {
+                final TypeMirror elementType = typeArguments.get(0);
+                if (elementType.getKind() == TypeKind.DECLARED
+                        && ElementUtil.findAnnotatedField((TypeElement) ((DeclaredType) elementType).asElement(), UpdaterProcessor.sKEY) != null) {
+                    field.mNestedUpdater = getNestedUpdater(elementType);
+                    if (field.mNestedUpdater != null) {
+                        field.mMergeKind = sMERGE_LIST_BY_KEY;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the static field holding the updater of a nested updatable type
+     *
+     * @param fieldType type of a field
+     * @return the static field, or null if the type is not {@link Updatable} or there is no updater class
+     * in consolidated mode
+     */
+    private FieldSpec getNestedUpdater(TypeMirror fieldType) {
+        if (mIsConsolidated || fieldType.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final Element element = ((DeclaredType) fieldType).asElement();
+        if (element.getAnnotation(Updatable.class) == null) {
+            return null;
+        }
+        final ClassName entityName = ClassName.get((TypeElement) element);
+        final ClassName updaterName = ClassName.get(entityName.packageName(), entityName.simpleName() + Updater.CLASS_PREFIX);
+        FieldSpec updaterField = mNestedUpdaters.get(updaterName);
+        if (updaterField == null) {
+            updaterField = FieldSpec.builder(updaterName,
+                    "s" + ElementUtil.constantName(entityName.simpleName()) + "_UPDATER_" + mNestedUpdaters.size(),
+                    Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("new $T()", updaterName)
+                    .build();
+            mNestedUpdaters.put(updaterName, updaterField);
+        }
+        return updaterField;
+    }
+
+    /**
+     * Set the identity key of entities, which enables generation of method mergeAll
+     *
+     * @param key    Declaration of the key field
+     * @param getter Declaration of the key's getter method, null if the field can be read directly
+     */
+    public UpdaterGenerator setKey(VariableElement key, ExecutableElement getter) {
+        final FieldSpec fieldSpec = FieldSpec.builder(TypeName.get(key.asType()), key.getSimpleName().toString()).build();
+        if (getter == null) {
+            mKeyField = new Field(fieldSpec, false, 0, -1, null);
+        } else {
+            mKeyField = new Property(fieldSpec, MethodSpec.overriding(getter).build(), null, false, 0, -1, null);
+        }
+        return this;
+    }
+
+    /**
+     * Set the version of entities. Updates whose new entity has a version not greater than the old one are dropped
+     * before any field is written, and method isNewer and updateIfNewer are generated.
+     *
+     * @param version Declaration of the byte, short, int or long version field
+     * @param getter  Declaration of the version's getter method, null if the field can be read directly
+     */
+    public UpdaterGenerator setVersion(VariableElement version, ExecutableElement getter) {
+        final FieldSpec fieldSpec = FieldSpec.builder(TypeName.get(version.asType()), version.getSimpleName().toString()).build();
+        if (getter == null) {
+            mVersionField = new Field(fieldSpec, false, 0, -1, null);
+        } else {
+            mVersionField = new Property(fieldSpec, MethodSpec.overriding(getter).build(), null, false, 0, -1, null);
+        }
+        return this;
+    }
+
+    /**
+     * Whether the version has been set
+     */
+    public boolean hasVersion() {
+        return mVersionField != null;
+    }
+
+    /**
+     * Add the statement which returns early if the new entity is not newer than the old one.
+     * Nothing is added unless the version is set. Versions are compared whatever fields a partial update selects,
+     * since the selected fields of a stale entity are stale too.
+     *
+     * @param oldTSpec        declaration of the old entity
+     * @param newTSpec        declaration of the new entity
+     * @param returnStatement the statement returning early
+     * @param returnArgs      arguments of returnStatement
+     */
+    private void addVersionCheck(MethodSpec.Builder builder, ParameterSpec oldTSpec, ParameterSpec newTSpec,
+                                 String returnStatement, Object... returnArgs) {
+        if (mVersionField == null) {
+            return;
+        }
+        final String read = mVersionField.readFormat();
+        builder.beginControlFlow("if (" + read + " <= " + read + ")",
+                Field.concat(mVersionField.readArgs(newTSpec), mVersionField.readArgs(oldTSpec)))
+                .addStatement(returnStatement, returnArgs)
+                .endControlFlow();
+    }
+
+    /**
+     * Generate method isNewer, and method updateIfNewer which reports whether the update was dropped
+     */
+    private List<MethodSpec> generateVersionMethods() {
+        final ParameterSpec oldParam = mParamSpecOfOldEntity;
+        final ParameterSpec newParam = mParamSpecOfNewEntity;
+        final String read = mVersionField.readFormat();
+        final List<MethodSpec> methods = new ArrayList<>();
+        methods.add(MethodSpec.methodBuilder("isNewer")
+                .addJavadoc("Whether the version of $N is greater than the version of $N\n", newParam, oldParam)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(oldParam)
+                .addParameter(newParam)
+                .returns(TypeName.BOOLEAN)
+                .addCode(generateNullCheckStatement(oldParam))
+                .addCode(generateNullCheckStatement(newParam))
+                .addStatement("return " + read + " > " + read, Field.concat(mVersionField.readArgs(newParam), mVersionField.readArgs(oldParam)))
+                .build());
+        methods.add(MethodSpec.methodBuilder("updateIfNewer")
+                .addJavadoc("Same as {@link #update}, returns false if the update was dropped because $N is not newer\n", newParam)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(oldParam)
+                .addParameter(newParam)
+                .returns(TypeName.BOOLEAN)
+                .beginControlFlow("if (!isNewer($N, $N))", oldParam, newParam)
+                .addStatement("return false")
+                .endControlFlow()
+                .addStatement("update($N, $N)", oldParam, newParam)
+                .addStatement("return true")
+                .build());
+        return methods;
+    }
+
+    /**
+     * Turn on the seqlock mode: every method writing an entity holds its monitor, and increments the sequence
+     * field before and after the writes, so the sequence is odd while an update is in progress.
+     * Readers take no lock, they check the sequence before and after reading and retry if it changed.
+     *
+     * @param sequence Declaration of the volatile int or long sequence field, which must be accessible
+     */
+    public UpdaterGenerator setSequence(VariableElement sequence) {
+        mSequenceField = FieldSpec.builder(TypeName.get(sequence.asType()), sequence.getSimpleName().toString()).build();
+        mSequenceOwner = ClassName.get((TypeElement) sequence.getEnclosingElement());
+        return this;
+    }
+
+    /**
+     * Whether the sequence field has been set
+     */
+    public boolean hasSequence() {
+        return mSequenceField != null;
+    }
+
+    /**
+     * Add a field passed to the constructor or builder by method merge
+     *
+     * @param field    Declaration of a field
+     * @param getter   Declaration of the field's getter method, null if the field can be read directly
+     * @param omitNull Whether or not should null value be ignored when merging this field
+     * @param flags    Bitwise or of FLAG_* constants, only {@link #FLAG_COMPARE_BY_EQUALS} matters
+     * @param skip     Whether the old value is always kept
+     */
+    public UpdaterGenerator addImmutableField(VariableElement field, ExecutableElement getter, boolean omitNull, int flags, boolean skip) {
+        final FieldSpec fieldSpec = FieldSpec.builder(TypeName.get(field.asType()), field.getSimpleName().toString()).build();
+        final int index = skip ? -1 : mImmutableFields.size();
+        if (getter == null) {
+            mImmutableFields.add(new Field(fieldSpec, omitNull, flags, index, null));
+        } else {
+            mImmutableFields.add(new Property(fieldSpec, MethodSpec.overriding(getter).build(), null, omitNull, flags, index, null));
+        }
+        return this;
+    }
+
+    /**
+     * Generate method merge, which creates new entities by the constructor taking all immutable fields
+     *
+     * @param constructor Declaration of the constructor
+     */
+    public UpdaterGenerator setConstructor(ExecutableElement constructor) {
+        mFactory = constructor;
+        return this;
+    }
+
+    /**
+     * Generate method merge, which creates new entities by a builder
+     *
+     * @param builderMethod Declaration of the static method which creates a builder
+     * @param setters       Setters of the builder in the order of immutable fields
+     * @param build         Declaration of the builder's method which builds the entity
+     */
+    public UpdaterGenerator setBuilder(ExecutableElement builderMethod, List<ExecutableElement> setters, ExecutableElement build) {
+        mFactory = builderMethod;
+        mBuilderSetters = setters;
+        mBuildMethod = build;
+        return this;
+    }
+
+    /**
+     * Report every update to a metrics sink. The sink must declare
+     * {@code static void onUpdate(Class<?> type, int changedFields, long elapsedNanos)},
+     * which is called after fields are written. Nothing is generated for metrics unless this method is called.
+     *
+     * @param sink  the class declaring onUpdate
+     * @param timed whether the duration of updates is measured, otherwise elapsedNanos is -1
+     */
+    public UpdaterGenerator setMetricsSink(ClassName sink, boolean timed) {
+        mMetricsSink = sink;
+        mIsMetricsTimed = timed;
+        return this;
+    }
+
+    /**
+     * Let listeners be registered on the updater. After every update which changes any field, each listener is called
+     * once with the entity and a patch holding previous values of changed fields.
+     * Previous values are recorded only if a listener is registered.
+     */
+    public UpdaterGenerator setObserved() {
+        mIsObserved = true;
+        return this;
+    }
+
+    /**
+     * Generate update(old, new, fieldMask) and updateWithChanges(old, new, fieldMask) which update selected fields only
+     */
+    public UpdaterGenerator setMasked() {
+        mIsMasked = true;
+        return this;
+    }
+
+    /**
+     * Generate writeDelta(old, new, buffer) which encodes changed fields, and readDelta(target, buffer) which decodes them
+     */
+    public UpdaterGenerator setDeltaEncoded() {
+        mIsDeltaEncoded = true;
+        return this;
+    }
+
+    /**
+     * Generate diff(old, new) which records changed fields in a patch, and apply(target, patch) which writes them
+     */
+    public UpdaterGenerator setDiffed() {
+        mIsDiffed = true;
+        return this;
+    }
+
+    /**
+     * Generate method readTokens, which reads a JSON object from a token reader straight into an existing entity
+     *
+     * @param tokenReader the token reader interface
+     */
+    public UpdaterGenerator setStreamed(ClassName tokenReader) {
+        mTokenReader = tokenReader;
+        return this;
+    }
+
+    /**
+     * Generate update(old, new, journal) which records overwritten values in a reusable patch,
+     * and rollback(old, journal) which restores them
+     */
+    public UpdaterGenerator setJournaled() {
+        mIsJournaled = true;
+        return this;
+    }
+
+    /**
+     * Let the updater implement the field accessor interface, which reads and writes fields by FIELD_* index
+     *
+     * @param fieldAccessor the FieldAccessor interface shipped by the runtime artifact
+     */
+    public UpdaterGenerator setFieldAccessor(ClassName fieldAccessor) {
+        mFieldAccessor = fieldAccessor;
+        return this;
+    }
+
+    /**
+     * Turn on consolidated mode: no updater class is written, the registry calls
+     * {@link #generateConsolidatedUpdateMethod(String)} instead. Nested updatable entities have no updater to merge
+     * them in place, so their fields are replaced and lists of them are refilled.
+     * Must be called before fields are added.
+     */
+    public UpdaterGenerator setConsolidated() {
+        mIsConsolidated = true;
+        return this;
+    }
+
+    /**
+     * Set the JSON name of a field read by method readTokens, which is the field name by default
+     *
+     * @param field Declaration of the field
+     * @param name  the JSON name
+     */
+    public UpdaterGenerator setSerializedName(VariableElement field, String name) {
+        mSerializedNames.put(field.getSimpleName().toString(), name);
+        return this;
+    }
+
+    /**
+     * Whether the field was added and is merged in place, as a nested entity or a container,
+     * so its previous contents cannot be recorded by reference
+     *
+     * @param field Declaration of the field
+     */
+    public boolean isMergedInPlace(VariableElement field) {
+        final String name = field.getSimpleName().toString();
+        for (Field added : mFieldSpecList) {
+            if (added.mFieldSpec.name.equals(name)) {
+                return added.mMergeKind != sMERGE_NONE;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether updateWithChanges wraps the private method writing fields, to report metrics or notify listeners
+     */
+    private boolean isUpdateWrapped() {
+        return mMetricsSink != null || mIsObserved;
+    }
+
+    /**
+     * Whether the identity key has been set
+     */
+    public boolean hasKey() {
+        return mKeyField != null;
+    }
+
+    /**
+     * Name the index constant of given field, e.g. FIELD_USER_NAME for mUserName.
+     * If the name is already taken, the index is appended to make it unique.
+     *
+     * @param field Declaration of a field
+     * @return an unused constant name
+     */
+    private String nextIndexName(VariableElement field) {
+        String name = "FIELD_" + ElementUtil.constantName(field.getSimpleName());
+        if (!mIndexNames.add(name)) {
+            name = name + "_" + mFieldSpecList.size();
+            mIndexNames.add(name);
+        }
+        return name;
+    }
+
+    /**
+     * Whether the change mask of this entity is too wide to fit in a single long
+     */
+    private boolean isWideMask() {
+        return mFieldSpecList.size() > sMAX_NARROW_MASK_WIDTH;
+    }
+
+    /**
+     * Generate the update method
+     *
+     * @param methodName name of this method
+     * @param oldTSpec   declaration of first parameter
+     * @param newTSpec   declaration of second parameter
+     * @param fieldMask  declaration of the mask selecting fields to update, null to update all fields
+     * @return the definition of this method, including method signature, modifiers, method body and return type
+     */
+    private MethodSpec generateUpdateMethod(final String methodName, final ParameterSpec oldTSpec, final ParameterSpec newTSpec,
+                                            final ParameterSpec fieldMask) {
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(oldTSpec)
+                .addParameter(newTSpec);
+        if (fieldMask == null) {
+            builder.addAnnotation(Override.class);
+        } else {
+            builder.addJavadoc("Same as {@link #update($T, $T)}, but only fields whose FIELD_* bit is set in $N are updated.\n"
+                            + "Other fields of $N are ignored, so they need not hold meaningful values.\n",
+                    mEntityClassName, mEntityClassName, fieldMask, newTSpec)
+                    .addParameter(fieldMask);
+        }
+        /**
+         * Metrics and listeners need the change mask, so every update goes through updateWithChanges
+         */
+        if (isUpdateWrapped()) {
+            if (fieldMask == null) {
+                return builder.addStatement("updateWithChanges($N, $N)", oldTSpec, newTSpec).build();
+            }
+            return builder.addStatement("updateWithChanges($N, $N, $N)", oldTSpec, newTSpec, fieldMask).build();
+        }
+        addUpdateStatements(builder, oldTSpec, newTSpec, fieldMask);
+        return builder.build();
+    }
+
+    /**
+     * Add the body of method update: null checks, the version check and update statements of fields,
+     * inside the write section of seqlock mode
+     *
+     * @param fieldMask declaration of the mask selecting fields to update, null to update all fields
+     */
+    private void addUpdateStatements(MethodSpec.Builder builder, ParameterSpec oldTSpec, ParameterSpec newTSpec, ParameterSpec fieldMask) {
+        builder.addCode(generateNullCheckStatement(oldTSpec))
+                .addCode(generateNullCheckStatement(newTSpec));
+        beginWrite(builder, oldTSpec);
+        addVersionCheck(builder, oldTSpec, newTSpec, "return");
+        if (fieldMask == null) {
+            for (CodeBlock updateStatement : generateUpdaterBlocks(oldTSpec, newTSpec)) {
+                builder.addCode(updateStatement);
+            }
+        } else {
+            addSelectedUpdateStatements(builder, oldTSpec, newTSpec, null, fieldMask);
+        }
+        endWrite(builder, oldTSpec);
+    }
+
+    /**
+     * Generate the static update method of this entity for the consolidated registry, which replaces the updater class
+     * in consolidated mode, see {@link #setConsolidated()}. It does what method update of the updater does.
+     * The method is package-private, so the dispatcher nested in the registry calls it without a synthetic accessor.
+     *
+     * @param methodName name of this method, entity types are told apart by overloading
+     * @return the definition of this method
+     */
+    public MethodSpec generateConsolidatedUpdateMethod(String methodName) {
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addModifiers(Modifier.STATIC)
+                .addParameter(mParamSpecOfOldEntity)
+                .addParameter(mParamSpecOfNewEntity);
+        addUpdateStatements(builder, mParamSpecOfOldEntity, mParamSpecOfNewEntity, null);
+        return builder.build();
+    }
+
+    /**
+     * Declaration of the parameter selecting fields of a partial update, a long or a long[] like change masks
+     */
+    private ParameterSpec generateFieldMaskParam() {
+        return ParameterSpec.builder(isWideMask() ? ArrayTypeName.of(TypeName.LONG) : TypeName.LONG, "fieldMask", Modifier.FINAL).build();
+    }
+
+    /**
+     * Add update statements of the fields selected by a field mask. Set bits are visited one by one and dispatched by a
+     * switch on FIELD_* constants, so the cost is proportional to the number of selected fields, not of all fields.
+     *
+     * @param maskName  name of the local change mask, null if changes are not tracked
+     * @param fieldMask declaration of the mask selecting fields to update
+     */
+    private void addSelectedUpdateStatements(MethodSpec.Builder builder, ParameterSpec oldTSpec, ParameterSpec newTSpec,
+                                             String maskName, ParameterSpec fieldMask) {
+        final boolean wide = isWideMask();
+        if (wide) {
+            builder.addCode(generateNullCheckStatement(fieldMask))
+                    .beginControlFlow("for (int word = 0; word < $N.length; word++)", fieldMask)
+                    .addStatement("long selected = $N[word]", fieldMask);
+        } else {
+            builder.addStatement("long selected = $N", fieldMask);
+        }
+        builder.beginControlFlow("while (selected != 0L)");
+        if (wide) {
+            builder.addStatement("final int index = word << 6 | $T.numberOfTrailingZeros(selected)", Long.class);
+        } else {
+            builder.addStatement("final int index = $T.numberOfTrailingZeros(selected)", Long.class);
+        }
+        builder.addStatement("selected &= selected - 1L")
+                .beginControlFlow("switch (index)");
+        for (Field field : mFieldSpecList) {
+            /**
+             * Each case is a block, since update statements may declare locals
+             */
+            builder.beginControlFlow("case $N:", field.mIndexName)
+                    .addCode(field.createUpdateStatement(oldTSpec, newTSpec, maskName, wide))
+                    .addStatement("break")
+                    .endControlFlow();
+        }
+        builder.addCode("default:\n")
+                .addStatement("throw new $T(\"Unknown field index \" + index)", IllegalArgumentException.class)
+                .endControlFlow()
+                .endControlFlow();
+        if (wide) {
+            builder.endControlFlow();
+        }
+    }
+
+    /**
+     * Generate the update method which also reports changed fields.
+     * The returned mask has bit {@link Field#mIndex} set for every field whose value changed,
+     * as a long, or as long[] if there are more than {@link #sMAX_NARROW_MASK_WIDTH} fields.
+     *
+     * @param methodName name of this method
+     * @param visibility access modifier of this method
+     * @param oldTSpec   declaration of first parameter
+     * @param newTSpec   declaration of second parameter
+     * @param fieldMask  declaration of the mask selecting fields to update, null to update all fields
+     * @return the definition of this method
+     */
+    private MethodSpec generateUpdateWithChangesMethod(final String methodName, final Modifier visibility,
+                                                       final ParameterSpec oldTSpec, final ParameterSpec newTSpec,
+                                                       final ParameterSpec fieldMask) {
+        final boolean wide = isWideMask();
+        final String maskName = "changes";
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addJavadoc(fieldMask == null
+                        ? "Same as {@link #update}, returns the mask of changed fields indexed by FIELD_* constants\n"
+                        : "Same as {@link #update} with a field mask, returns the mask of changed fields among the selected ones\n")
+                .addModifiers(visibility)
+                .addParameter(oldTSpec)
+                .addParameter(newTSpec);
+        if (fieldMask != null) {
+            builder.addParameter(fieldMask);
+        }
+        builder.returns(wide ? ArrayTypeName.of(TypeName.LONG) : TypeName.LONG)
+                .addCode(generateNullCheckStatement(oldTSpec))
+                .addCode(generateNullCheckStatement(newTSpec));
+        beginWrite(builder, oldTSpec);
+        if (wide) {
+            builder.addStatement("final long[] $N = new long[($N + 63) >>> 6]", maskName, sCOUNT_FIELDS);
+        } else {
+            builder.addStatement("long $N = 0L", maskName);
+        }
+        addVersionCheck(builder, oldTSpec, newTSpec, "return $N", maskName);
+
+        if (fieldMask == null) {
+            for (Field field : mFieldSpecList) {
+                builder.addCode(field.createUpdateStatement(oldTSpec, newTSpec, maskName, wide));
+            }
+        } else {
+            addSelectedUpdateStatements(builder, oldTSpec, newTSpec, maskName, fieldMask);
+        }
+        builder.addStatement("return $N", maskName);
+        endWrite(builder, oldTSpec);
+        return builder.build();
+    }
+
+    /**
+     * Generate method updateWithChanges which wraps the private method writing fields:
+     * <ol>
+     * <li>If metrics are on, report the entity type, the number of changed fields and the elapsed time to {@link #mMetricsSink}</li>
+     * <li>If listeners are registered, record previous values of fields before writing, and notify listeners of the changed ones</li>
+     * </ol>
+     *
+     * @param fieldMask declaration of the mask selecting fields to update, null to update all fields
+     */
+    private MethodSpec generateWrappedUpdateWithChangesMethod(final ParameterSpec fieldMask) {
+        final boolean wide = isWideMask();
+        final TypeName maskType = wide ? ArrayTypeName.of(TypeName.LONG) : TypeName.LONG;
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final ParameterSpec oldParam = mParamSpecOfOldEntity;
+        final ParameterSpec newParam = mParamSpecOfNewEntity;
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("updateWithChanges")
+                .addJavadoc(fieldMask == null
+                        ? "Same as {@link #update}, returns the mask of changed fields indexed by FIELD_* constants\n"
+                        : "Same as {@link #update} with a field mask, returns the mask of changed fields among the selected ones\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(oldParam)
+                .addParameter(newParam);
+        if (fieldMask != null) {
+            builder.addParameter(fieldMask);
+        }
+        builder.returns(maskType);
+        if (mIsObserved) {
+            /**
+             * Values of every field are recorded before writing, since only the update knows which fields it writes
+             */
+            builder.addStatement("final $T[] listeners = mListeners", listenerType())
+                    .addStatement("final $T previous = listeners.length == 0 ? null : $N($N)", patchType, sRECORD, oldParam);
+        }
+        if (mMetricsSink != null && mIsMetricsTimed) {
+            builder.addStatement("final long start = $T.nanoTime()", System.class);
+        }
+        if (fieldMask == null) {
+            builder.addStatement("final $T changes = $N($N, $N)", maskType, sUPDATE_FIELDS, oldParam, newParam);
+        } else {
+            builder.addStatement("final $T changes = $N($N, $N, $N)", maskType, sUPDATE_FIELDS, oldParam, newParam, fieldMask);
+        }
+        if (mMetricsSink != null) {
+            addMetricsStatement(builder, "changes");
+        }
+        if (mIsObserved) {
+            /**
+             * Only fields which were actually written are reported, e.g. null values of omit-null fields are not
+             */
+            builder.beginControlFlow("if (previous != null)");
+            if (wide) {
+                builder.addStatement("boolean changed = false")
+                        .beginControlFlow("for (int i = 0; i < changes.length; i++)")
+                        .addStatement("previous.mask[i] = changes[i]")
+                        .addStatement("changed |= changes[i] != 0L")
+                        .endControlFlow()
+                        .beginControlFlow("if (changed)");
+            } else {
+                builder.addStatement("previous.mask = changes")
+                        .beginControlFlow("if (changes != 0L)");
+            }
+            builder.beginControlFlow("for (final $T listener : listeners)", listenerType())
+                    .addStatement("listener.onFieldsChanged($N, previous)", oldParam)
+                    .endControlFlow()
+                    .endControlFlow()
+                    .endControlFlow();
+        }
+        return builder.addStatement("return changes").build();
+    }
+
+    /**
+     * Generate the private method which records the value of every field of an entity in a new patch with an empty mask,
+     * used by {@link #generateWrappedUpdateWithChangesMethod} to keep previous values for listeners
+     */
+    private MethodSpec generateRecordMethod() {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final ParameterSpec entity = ParameterSpec.builder(mEntityClassName, sENTITY, Modifier.FINAL).build();
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(sRECORD)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(entity)
+                .returns(patchType)
+                .addStatement("final $T patch = new $T()", patchType, patchType);
+        for (Field field : mFieldSpecList) {
+            builder.addStatement("patch.$N[$L] = " + field.readFormat(),
+                    Field.flatten(patchArrayName(field.patchKind()), field.mPatchSlot, field.readArgs(entity)));
+        }
+        return builder.addStatement("return patch").build();
+    }
+
+    /**
+     * Type of the nested listener interface, see {@link #generateListenerType()}
+     */
+    private ClassName listenerType() {
+        return ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sLISTENER);
+    }
+
+    /**
+     * Generate the listener interface notified of changed fields
+     */
+    private TypeSpec generateListenerType() {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        return TypeSpec.interfaceBuilder(sLISTENER)
+                .addJavadoc("Listener notified once per update of {@link $N} which changes any field\n", mGeneratedClassName)
+                .addModifiers(Modifier.PUBLIC)
+                .addMethod(MethodSpec.methodBuilder("onFieldsChanged")
+                        .addJavadoc("Called after fields of entity are written. Changed fields are marked in the mask of previous,\n"
+                                + "which holds their values before the update, while entity holds the new ones.\n"
+                                + "Fields merged in place hold the same container before and after the update.\n"
+                                + "previous must not be kept after this returns, the journal of a journaled update is reused.\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT)
+                        .addParameter(mEntityClassName, sENTITY)
+                        .addParameter(patchType, "previous")
+                        .build())
+                .build();
+    }
+
+    /**
+     * Generate the listener registry: a copy-on-write array, so notifying costs a volatile read when nobody is subscribed
+     */
+    private void addListenerRegistry(TypeSpec.Builder builder) {
+        final ClassName listenerType = listenerType();
+        final ArrayTypeName listenersType = ArrayTypeName.of(listenerType);
+        final ParameterSpec listener = ParameterSpec.builder(listenerType, "listener", Modifier.FINAL).build();
+        builder.addType(generateListenerType())
+                .addField(FieldSpec.builder(listenersType, "sNO_LISTENERS", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer("new $T[0]", listenerType)
+                        .build())
+                .addField(FieldSpec.builder(listenersType, "mListeners", Modifier.PRIVATE, Modifier.VOLATILE)
+                        .initializer("sNO_LISTENERS")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("addListener")
+                        .addJavadoc("Register a listener notified of changed fields of every entity updated by this updater\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                        .addParameter(listener)
+                        .addCode(generateNullCheckStatement(listener))
+                        .addStatement("final $T listeners = $T.copyOf(mListeners, mListeners.length + 1)", listenersType, Arrays.class)
+                        .addStatement("listeners[listeners.length - 1] = $N", listener)
+                        .addStatement("mListeners = listeners")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("removeListener")
+                        .addJavadoc("Unregister a listener, nothing happens if it is not registered\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                        .addParameter(listener)
+                        .beginControlFlow("for (int i = 0; i < mListeners.length; i++)")
+                        .beginControlFlow("if (mListeners[i] == $N)", listener)
+                        .addStatement("final $T listeners = new $T[mListeners.length - 1]", listenersType, listenerType)
+                        .addStatement("$T.arraycopy(mListeners, 0, listeners, 0, i)", System.class)
+                        .addStatement("$T.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i)", System.class)
+                        .addStatement("mListeners = listeners.length == 0 ? sNO_LISTENERS : listeners")
+                        .addStatement("return")
+                        .endControlFlow()
+                        .endControlFlow()
+                        .build());
+    }
+
+    /**
+     * Generate the result type of method mergeAll, which reports inserted and removed entities
+     */
+    private TypeSpec generateMergeResultType() {
+        final TypeName listType = ParameterizedTypeName.get(ClassName.get(List.class), mEntityClassName);
+        return TypeSpec.classBuilder(sMERGE_RESULT)
+                .addJavadoc("Result of {@link $N#mergeAll}\n", mGeneratedClassName)
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addField(FieldSpec.builder(listType, "inserted", Modifier.PUBLIC, Modifier.FINAL)
+                        .initializer("new $T<>()", ArrayList.class)
+                        .build())
+                .addField(FieldSpec.builder(listType, "removed", Modifier.PUBLIC, Modifier.FINAL)
+                        .initializer("new $T<>()", ArrayList.class)
+                        .build())
+                .addField(TypeName.INT, "updated", Modifier.PUBLIC)
+                .build();
+    }
+
+    /**
+     * Generate method mergeAll, which merges a list of incoming entities into a list of existing entities by key:
+     * <ol>
+     * <li>An existing entity with the same key as an incoming one is updated in place</li>
+     * <li>Incoming entities without existing counterpart are appended to the existing list</li>
+     * <li>Existing entities without incoming counterpart are removed from the existing list</li>
+     * </ol>
+     * The existing list is indexed by key once, so merging takes linear time.
+     */
+    private MethodSpec generateMergeAllMethod() {
+        final TypeName listType = ParameterizedTypeName.get(ClassName.get(List.class), mEntityClassName);
+        final TypeName keyType = mKeyField.mFieldSpec.type.box();
+        final TypeName indexType = ParameterizedTypeName.get(ClassName.get(HashMap.class), keyType, mEntityClassName);
+        final ClassName resultType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sMERGE_RESULT);
+        final ParameterSpec existing = ParameterSpec.builder(listType, "existing", Modifier.FINAL).build();
+        final ParameterSpec incoming = ParameterSpec.builder(listType, "incoming", Modifier.FINAL).build();
+        final String readKey = mKeyField.readFormat();
+
+        return MethodSpec.methodBuilder("mergeAll")
+                .addJavadoc("Merge incoming entities into existing ones by key. Matched entities are updated in place,\n"
+                        + "unmatched incoming entities are appended and unmatched existing entities are removed.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(existing)
+                .addParameter(incoming)
+                .returns(resultType)
+                .addCode(generateNullCheckStatement(existing))
+                .addCode(generateNullCheckStatement(incoming))
+                .addStatement("final $T result = new $T()", resultType, resultType)
+                .addStatement("final $T index = new $T<>($N.size() * 4 / 3 + 1)", indexType, HashMap.class, existing)
+                .addStatement("final $T matched = new $T<>($N.size() * 4 / 3 + 1)", indexType, HashMap.class, existing)
+                .beginControlFlow("for (final $T entity : $N)", mEntityClassName, existing)
+                .addStatement("index.put(" + readKey + ", entity)", mKeyField.readArgs(sENTITY))
+                .endControlFlow()
+                .beginControlFlow("for (final $T entity : $N)", mEntityClassName, incoming)
+                .addStatement("final $T key = " + readKey, Field.concat(new Object[]{keyType}, mKeyField.readArgs(sENTITY)))
+                .addStatement("$T current = index.remove(key)", mEntityClassName)
+                .beginControlFlow("if (current != null)")
+                .addStatement("matched.put(key, current)")
+                .nextControlFlow("else")
+                .addStatement("current = matched.get(key)")
+                .endControlFlow()
+                .beginControlFlow("if (current != null)")
+                .addStatement("update(current, entity)")
+                .addStatement("result.updated++")
+                .nextControlFlow("else")
+                .addStatement("result.inserted.add(entity)")
+                .endControlFlow()
+                .endControlFlow()
+                .beginControlFlow("if (matched.size() != $N.size())", existing)
+                .addStatement("final $T survivors = new $T<>(matched.size() + result.inserted.size())", listType, ArrayList.class)
+                .beginControlFlow("for (final $T entity : $N)", mEntityClassName, existing)
+                .beginControlFlow("if (matched.get(" + readKey + ") == entity)", mKeyField.readArgs(sENTITY))
+                .addStatement("survivors.add(entity)")
+                .nextControlFlow("else")
+                .addStatement("result.removed.add(entity)")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("$N.clear()", existing)
+                .addStatement("$N.addAll(survivors)", existing)
+                .endControlFlow()
+                .addStatement("$N.addAll(result.inserted)", existing)
+                .addStatement("return result")
+                .build();
+    }
+
+    /**
+     * Generate method readTokens, which reads members of a JSON object into target, dispatched by a switch on names:
+     * <ol>
+     * <li>Primitives, boxed primitives, strings and enums are read, enums by constant name</li>
+     * <li>Null is written only to reference fields which accept null, other fields keep their values</li>
+     * <li>Unknown enum constants and empty strings read as char are taken as null, see {@link #addTokenHelpers}</li>
+     * <li>Members of other types, unknown members and duplicate names are skipped</li>
+     * </ol>
+     * No intermediate entity is created. Fields are written as they are read, so versions are not compared and
+     * listeners and metrics are not notified.
+     */
+    private MethodSpec generateReadTokensMethod() {
+        final ParameterSpec reader = ParameterSpec.builder(mTokenReader, "reader", Modifier.FINAL).build();
+        final ParameterSpec target = ParameterSpec.builder(mEntityClassName, "target", Modifier.FINAL).build();
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("readTokens")
+                .addJavadoc("Read a JSON object from $N into $N, members not read by this updater are skipped\n", reader, target)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(reader)
+                .addParameter(target)
+                .addException(IOException.class)
+                .addCode(generateNullCheckStatement(reader))
+                .addCode(generateNullCheckStatement(target));
+        beginWrite(builder, target);
+        builder.addStatement("$N.beginObject()", reader)
+                .beginControlFlow("while ($N.hasNext())", reader)
+                .beginControlFlow("switch ($N.nextName())", reader);
+        final Set<String> names = new HashSet<>();
+        for (Field field : mFieldSpecList) {
+            final String valueFormat = field.tokenFormat();
+            String name = mSerializedNames.get(field.mFieldSpec.name);
+            if (name == null) {
+                name = field.mFieldSpec.name;
+            }
+            if (valueFormat == null || !names.add(name)) {
+                continue;
+            }
+            final CodeBlock.Builder write = CodeBlock.builder();
+            if (field.isTokenNullable() && (field.mFieldSpec.type.isPrimitive() || field.mIsOmitNull)) {
+                write.beginControlFlow("if (!$N.skipNull())", reader)
+                        .addStatement("final $T value = " + valueFormat, Field.concat(new Object[]{field.mFieldSpec.type.box()}, field.tokenArgs(reader)))
+                        .beginControlFlow("if (value != null)");
+                field.addWriteStatement(write, target, "value");
+                write.endControlFlow()
+                        .endControlFlow();
+                builder.beginControlFlow("case $S:", name)
+                        .addCode(write.build())
+                        .addStatement("break")
+                        .endControlFlow();
+                continue;
+            }
+            if (field.mFieldSpec.type.isPrimitive() || field.mIsOmitNull) {
+                write.beginControlFlow("if (!$N.skipNull())", reader);
+            } else {
+                write.beginControlFlow("if ($N.skipNull())", reader);
+                field.addWriteStatement(write, target, "null");
+                write.nextControlFlow("else");
+            }
+            field.addWriteStatement(write, target, valueFormat, field.tokenArgs(reader));
+            write.endControlFlow();
+            builder.beginControlFlow("case $S:", name)
+                    .addCode(write.build())
+                    .addStatement("break")
+                    .endControlFlow();
+        }
+        builder.addCode("default:\n")
+                .addStatement("$N.skipValue()", reader)
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("$N.endObject()", reader);
+        endWrite(builder, target);
+        return builder.build();
+    }
+
+    /**
+     * Implement the field accessor interface. Names and raw types of fields are kept in arrays indexed by FIELD_*
+     * constants, get and set methods switch on the index. A typed method has a case for each field of its exact type,
+     * and throws for other indexes.
+     */
+    private void addFieldAccessor(TypeSpec.Builder builder) {
+        final TypeName entityType = TypeVariableName.get(mTypeElement.asType());
+        final ParameterSpec entity = ParameterSpec.builder(entityType, sENTITY, Modifier.FINAL).build();
+        final ParameterSpec index = ParameterSpec.builder(TypeName.INT, "index", Modifier.FINAL).build();
+        final ParameterSpec name = ParameterSpec.builder(String.class, "name", Modifier.FINAL).build();
+        final TypeName classType = ParameterizedTypeName.get(ClassName.get(Class.class), TypeVariableName.get("?"));
+        final StringBuilder names = new StringBuilder("{");
+        final List<Object> typeArgs = new ArrayList<>();
+        final StringBuilder types = new StringBuilder("{");
+        for (Field field : mFieldSpecList) {
+            final String separator = field.mIndex == 0 ? "" : ", ";
+            names.append(separator).append("$S");
+            types.append(separator).append("$T.class");
+            typeArgs.add(field.mRawType);
+        }
+        final List<Object> nameArgs = new ArrayList<>();
+        for (Field field : mFieldSpecList) {
+            nameArgs.add(field.mFieldSpec.name);
+        }
+        builder.addSuperinterface(ParameterizedTypeName.get(mFieldAccessor, entityType))
+                .addField(FieldSpec.builder(ArrayTypeName.of(String.class), "sFIELD_NAMES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer(names.append("}").toString(), nameArgs.toArray())
+                        .build())
+                .addField(FieldSpec.builder(ArrayTypeName.of(classType), "sFIELD_TYPES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                        .initializer(types.append("}").toString(), typeArgs.toArray())
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("fieldCount")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(TypeName.INT)
+                        .addStatement("return $N", sCOUNT_FIELDS)
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("fieldName")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(index)
+                        .returns(String.class)
+                        .addStatement("return sFIELD_NAMES[$N]", index)
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("fieldType")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(index)
+                        .returns(classType)
+                        .addStatement("return sFIELD_TYPES[$N]", index)
+                        .build());
+
+        final MethodSpec.Builder fieldIndex = MethodSpec.methodBuilder("fieldIndex")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(name)
+                .returns(TypeName.INT)
+                .addCode(generateNullCheckStatement(name))
+                .beginControlFlow("switch ($N)", name);
+        for (Field field : mFieldSpecList) {
+            fieldIndex.addCode("case $S:\n$>", field.mFieldSpec.name)
+                    .addStatement("return $N", field.mIndexName)
+                    .addCode("$<");
+        }
+        builder.addMethod(fieldIndex.addCode("default:\n$>")
+                .addStatement("return -1")
+                .addCode("$<")
+                .endControlFlow()
+                .build());
+
+        /**
+         * The exception is created out of line to keep accessor methods small enough to be inlined
+         */
+        final ParameterSpec type = ParameterSpec.builder(String.class, "type", Modifier.FINAL).build();
+        builder.addMethod(MethodSpec.methodBuilder("noSuchField")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(index)
+                .addParameter(type)
+                .returns(IllegalArgumentException.class)
+                .addStatement("return new $T(\"No \" + $N + \"field at index \" + $N)", IllegalArgumentException.class, type, index)
+                .build());
+        builder.addMethod(generateAccessorGetMethod("get", TypeName.OBJECT, null, entity, index));
+        builder.addMethod(generateAccessorSetMethod("set", TypeName.OBJECT, null, entity, index));
+        for (TypeName primitiveType : sPRIMITIVE_TYPES) {
+            final String suffix = Character.toUpperCase(primitiveType.toString().charAt(0)) + primitiveType.toString().substring(1);
+            builder.addMethod(generateAccessorGetMethod("get" + suffix, primitiveType, primitiveType, entity, index));
+            builder.addMethod(generateAccessorSetMethod("set" + suffix, primitiveType, primitiveType, entity, index));
+        }
+    }
+
+    /**
+     * Generate a get method of the field accessor
+     *
+     * @param fieldType the type of fields read by this method, null if all fields are read and boxed
+     */
+    private MethodSpec generateAccessorGetMethod(String methodName, TypeName returnType, TypeName fieldType,
+                                                 ParameterSpec entity, ParameterSpec index) {
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entity)
+                .addParameter(index)
+                .returns(returnType)
+                .addCode(generateNullCheckStatement(entity))
+                .beginControlFlow("switch ($N)", index);
+        for (Field field : mFieldSpecList) {
+            if (fieldType == null || fieldType.equals(field.mFieldSpec.type)) {
+                builder.addCode("case $N:\n$>", field.mIndexName)
+                        .addStatement("return " + field.readFormat(), field.readArgs(entity))
+                        .addCode("$<");
+            }
+        }
+        return builder.addCode("default:\n$>")
+                .addStatement("throw $N($N, $S)", "noSuchField", index, fieldType == null ? "" : fieldType + " ")
+                .addCode("$<")
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * Generate a set method of the field accessor
+     *
+     * @param fieldType the type of fields written by this method, null if all fields are written from Object
+     */
+    private MethodSpec generateAccessorSetMethod(String methodName, TypeName valueType, TypeName fieldType,
+                                                 ParameterSpec entity, ParameterSpec index) {
+        final ParameterSpec value = ParameterSpec.builder(valueType, "value", Modifier.FINAL).build();
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entity)
+                .addParameter(index)
+                .addParameter(value)
+                .addCode(generateNullCheckStatement(entity))
+                .beginControlFlow("switch ($N)", index);
+        boolean unchecked = false;
+        for (Field field : mFieldSpecList) {
+            if (fieldType != null && !fieldType.equals(field.mFieldSpec.type)) {
+                continue;
+            }
+            final CodeBlock.Builder write = CodeBlock.builder();
+            if (fieldType != null) {
+                field.addWriteStatement(write, entity, "$N", value);
+            } else {
+                /**
+                 * Primitives are unboxed by casting to their boxed types
+                 */
+                field.addWriteStatement(write, entity, "($T) $N", field.mFieldSpec.type.box(), value);
+                unchecked |= !field.mRawType.equals(field.mFieldSpec.type);
+            }
+            builder.addCode("case $N:\n$>", field.mIndexName)
+                    .addCode(write.build())
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        if (unchecked) {
+            builder.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class).addMember("value", "$S", "unchecked").build());
+        }
+        return builder.addCode("default:\n$>")
+                .addStatement("throw $N($N, $S)", "noSuchField", index, fieldType == null ? "" : fieldType + " ")
+                .addCode("$<")
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * Generate the canonicalising cache, which keeps one instance per key:
+     * <ol>
+     * <li>An incoming entity whose key is not cached becomes the canonical instance of the key</li>
+     * <li>Otherwise the incoming entity is merged into the canonical one, which is returned. Entities with updatable
+     * fields are updated in place, entities without any are replaced by the result of method merge</li>
+     * <li>At most maxSize keys are cached, the least recently used one is evicted first. With weak values,
+     * canonical instances no longer referenced elsewhere may be collected as well</li>
+     * </ol>
+     * Weak values are registered with a reference queue, which is polled on every call, so keys of collected instances
+     * are removed rather than occupying the cache until they are least recently used.
+     */
+    private TypeSpec generateCacheType() {
+        final ClassName updaterType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName);
+        final TypeName keyType = mKeyField.mFieldSpec.type.box();
+        final TypeName entriesType = ParameterizedTypeName.get(ClassName.get(LinkedHashMap.class), keyType, TypeName.OBJECT);
+        final ParameterSpec updater = ParameterSpec.builder(updaterType, "updater", Modifier.FINAL).build();
+        final ParameterSpec maxSize = ParameterSpec.builder(TypeName.INT, "maxSize", Modifier.FINAL).build();
+        final ParameterSpec weakValues = ParameterSpec.builder(TypeName.BOOLEAN, "weakValues", Modifier.FINAL).build();
+        final ParameterSpec incoming = ParameterSpec.builder(mEntityClassName, "incoming", Modifier.FINAL).build();
+        final ClassName weakValueType = updaterType.nestedClass(sCACHE).nestedClass(sWEAK_VALUE);
+        final TypeName queueType = ParameterizedTypeName.get(ClassName.get(ReferenceQueue.class), mEntityClassName);
+        final MethodSpec.Builder canonicalize = MethodSpec.methodBuilder("canonicalize")
+                .addJavadoc("Return the canonical instance of the key of $N, after merging $N into it.\n"
+                        + "$N itself becomes canonical if its key is not cached. Entities with null key are not cached.\n",
+                        incoming, incoming, incoming)
+                .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                .addParameter(incoming)
+                .returns(mEntityClassName)
+                .addCode(generateNullCheckStatement(incoming))
+                .addStatement("purge()")
+                .addStatement("final $T key = " + mKeyField.readFormat(), Field.concat(new Object[]{keyType}, mKeyField.readArgs(incoming)));
+        if (!mKeyField.mFieldSpec.type.isPrimitive()) {
+            canonicalize.beginControlFlow("if (key == null)")
+                    .addStatement("return $N", incoming)
+                    .endControlFlow();
+        }
+        canonicalize.addStatement("final $T value = mEntries.get(key)", Object.class)
+                .addStatement("$T canonical = ($T) (value instanceof $T ? (($T<?>) value).get() : value)",
+                        mEntityClassName, mEntityClassName, WeakReference.class, WeakReference.class)
+                .beginControlFlow("if (canonical == null)")
+                .addStatement("mMisses++")
+                .addStatement("put(key, $N)", incoming)
+                .addStatement("return $N", incoming)
+                .endControlFlow()
+                .addStatement("mHits++");
+        /**
+         * Entities with updatable fields keep their identity, only entities without any are replaced
+         */
+        if (mFieldSpecList.isEmpty() && mFactory != null) {
+            canonicalize.beginControlFlow("if (canonical != $N)", incoming)
+                    .addStatement("final $T merged = mUpdater.merge(canonical, $N)", mEntityClassName, incoming)
+                    .beginControlFlow("if (merged != canonical)")
+                    .addStatement("canonical = merged")
+                    .addStatement("put(key, canonical)")
+                    .endControlFlow()
+                    .endControlFlow();
+        } else {
+            canonicalize.beginControlFlow("if (canonical != $N)", incoming)
+                    .addStatement("mUpdater.update(canonical, $N)", incoming)
+                    .endControlFlow();
+        }
+        canonicalize.addStatement("return canonical");
+
+        return TypeSpec.classBuilder(sCACHE)
+                .addJavadoc("Cache keeping one canonical instance of {@link $T} per key, incoming instances are merged into it.\n"
+                        + "The least recently used key is evicted once maxSize keys are cached.\n", mEntityClassName)
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addField(updaterType, "mUpdater", Modifier.PRIVATE, Modifier.FINAL)
+                .addField(TypeName.INT, "mMaxSize", Modifier.PRIVATE, Modifier.FINAL)
+                .addField(TypeName.BOOLEAN, "mIsWeak", Modifier.PRIVATE, Modifier.FINAL)
+                .addField(entriesType, "mEntries", Modifier.PRIVATE, Modifier.FINAL)
+                .addField(FieldSpec.builder(queueType, "mQueue", Modifier.PRIVATE, Modifier.FINAL)
+                        .initializer("new $T<>()", ReferenceQueue.class)
+                        .build())
+                .addField(TypeName.LONG, "mHits", Modifier.PRIVATE)
+                .addField(TypeName.LONG, "mMisses", Modifier.PRIVATE)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addJavadoc("@param $N    merges incoming entities into canonical ones\n"
+                                + "@param $N    maximum number of cached keys\n"
+                                + "@param $N whether canonical instances are held by weak references\n",
+                                updater, maxSize, weakValues)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(updater)
+                        .addParameter(maxSize)
+                        .addParameter(weakValues)
+                        .addCode(generateNullCheckStatement(updater))
+                        .beginControlFlow("if ($N <= 0)", maxSize)
+                        .addStatement("throw new $T(\"maxSize must be positive\")", IllegalArgumentException.class)
+                        .endControlFlow()
+                        .addStatement("mUpdater = $N", updater)
+                        .addStatement("mMaxSize = $N", maxSize)
+                        .addStatement("mIsWeak = $N", weakValues)
+                        .addStatement("mEntries = new $T<>(16, 0.75f, true)", LinkedHashMap.class)
+                        .build())
+                .addMethod(canonicalize.build())
+                .addMethod(MethodSpec.methodBuilder("put")
+                        .addModifiers(Modifier.PRIVATE)
+                        .addParameter(keyType, "key", Modifier.FINAL)
+                        .addParameter(mEntityClassName, "canonical", Modifier.FINAL)
+                        .addStatement("mEntries.put(key, mIsWeak ? new $T(key, canonical, mQueue) : canonical)", weakValueType)
+                        .beginControlFlow("if (mEntries.size() > mMaxSize)")
+                        .addStatement("final $T<$T> eldest = mEntries.values().iterator()", Iterator.class, Object.class)
+                        .addStatement("eldest.next()")
+                        .addStatement("eldest.remove()")
+                        .endControlFlow()
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("purge")
+                        .addJavadoc("Remove keys whose weak value was collected, unless the key has been cached again since\n")
+                        .addModifiers(Modifier.PRIVATE)
+                        .addStatement("$T<?> reference", Reference.class)
+                        .beginControlFlow("while ((reference = mQueue.poll()) != null)")
+                        .addStatement("final $T key = (($T) reference).mKey", keyType, weakValueType)
+                        .beginControlFlow("if (mEntries.get(key) == reference)")
+                        .addStatement("mEntries.remove(key)")
+                        .endControlFlow()
+                        .endControlFlow()
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("hitCount")
+                        .addJavadoc("Number of calls to {@link #canonicalize} which found the key cached\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                        .returns(TypeName.LONG)
+                        .addStatement("return mHits")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("missCount")
+                        .addJavadoc("Number of calls to {@link #canonicalize} which cached a new canonical instance\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                        .returns(TypeName.LONG)
+                        .addStatement("return mMisses")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("size")
+                        .addJavadoc("Number of cached keys. A weak value collected but not yet enqueued still counts\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                        .returns(TypeName.INT)
+                        .addStatement("purge()")
+                        .addStatement("return mEntries.size()")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("clear")
+                        .addJavadoc("Evict all keys, counters are kept\n")
+                        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+                        .addStatement("mEntries.clear()")
+                        .build())
+                .addType(TypeSpec.classBuilder(sWEAK_VALUE)
+                        .addJavadoc("Package-private, so the cache reads the key without a synthetic accessor\n")
+                        .addModifiers(Modifier.STATIC, Modifier.FINAL)
+                        .superclass(ParameterizedTypeName.get(ClassName.get(WeakReference.class), mEntityClassName))
+                        .addField(keyType, "mKey", Modifier.FINAL)
+                        .addMethod(MethodSpec.constructorBuilder()
+                                .addParameter(keyType, "key", Modifier.FINAL)
+                                .addParameter(mEntityClassName, "canonical", Modifier.FINAL)
+                                .addParameter(queueType, "queue", Modifier.FINAL)
+                                .addStatement("super(canonical, queue)")
+                                .addStatement("mKey = key")
+                                .build())
+                        .build())
+                .build();
+    }
+
+    /**
+     * Give every field a slot in the patch array of its kind, so values of primitive fields are stored without boxing
+     *
+     * @return the number of slots of each patch array, keyed by component type
+     */
+    private Map<TypeName, Integer> assignPatchSlots() {
+        final Map<TypeName, Integer> slots = new LinkedHashMap<>();
+        for (Field field : mFieldSpecList) {
+            final TypeName kind = field.patchKind();
+            final Integer count = slots.get(kind);
+            field.mPatchSlot = count == null ? 0 : count;
+            slots.put(kind, field.mPatchSlot + 1);
+        }
+        return slots;
+    }
+
+    /**
+     * Name of the patch array of given component type, e.g. "ints" for int and "objects" for {@link Object}
+     */
+    private static String patchArrayName(TypeName kind) {
+        return kind.isPrimitive() ? kind + "s" : sPATCH_OBJECTS;
+    }
+
+    /**
+     * Generate the patch type returned by method diff, passed to listeners and used as journal.
+     * A patch holds the mask of changed fields, and their values in one array per primitive kind plus one array of references.
+     *
+     * @param slots the number of slots of each patch array, see {@link #assignPatchSlots()}
+     */
+    private TypeSpec generatePatchType(Map<TypeName, Integer> slots) {
+        final boolean wide = isWideMask();
+        final TypeSpec.Builder builder = TypeSpec.classBuilder(sPATCH)
+                .addJavadoc("Changed fields of an entity and their values, marked in the mask by FIELD_* constants of {@link $N}\n",
+                        mGeneratedClassName)
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL);
+        if (wide) {
+            builder.addField(FieldSpec.builder(ArrayTypeName.of(TypeName.LONG), "mask", Modifier.PUBLIC, Modifier.FINAL)
+                    .initializer("new long[($N + 63) >>> 6]", sCOUNT_FIELDS)
+                    .build());
+        } else {
+            builder.addField(TypeName.LONG, "mask", Modifier.PUBLIC);
+        }
+        for (Map.Entry<TypeName, Integer> slot : slots.entrySet()) {
+            builder.addField(FieldSpec.builder(ArrayTypeName.of(slot.getKey()), patchArrayName(slot.getKey()), Modifier.FINAL)
+                    .initializer("new $T[$L]", slot.getKey(), slot.getValue())
+                    .build());
+        }
+        final MethodSpec.Builder isChanged = MethodSpec.methodBuilder("isChanged")
+                .addJavadoc("Whether the field of given FIELD_* index is changed in this patch\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(TypeName.INT, "index")
+                .returns(TypeName.BOOLEAN);
+        final MethodSpec.Builder isEmpty = MethodSpec.methodBuilder("isEmpty")
+                .addJavadoc("Whether no field is changed in this patch\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(TypeName.BOOLEAN);
+        if (wide) {
+            isChanged.addStatement("return (mask[index >>> 6] & 1L << index) != 0L");
+            isEmpty.beginControlFlow("for (final long changes : mask)")
+                    .beginControlFlow("if (changes != 0L)")
+                    .addStatement("return false")
+                    .endControlFlow()
+                    .endControlFlow()
+                    .addStatement("return true");
+        } else {
+            isChanged.addStatement("return (mask & 1L << index) != 0L");
+            isEmpty.addStatement("return mask == 0L");
+        }
+        builder.addMethod(isChanged.build())
+                .addMethod(isEmpty.build());
+        addPatchAccessors(builder, slots);
+        return builder.build();
+    }
+
+    /**
+     * Generate accessors of values held by a patch, one per patch array so primitives are not boxed,
+     * e.g. intValue(FIELD_AGE). The slot of each field is looked up in a table indexed by FIELD_* constants.
+     */
+    private void addPatchAccessors(TypeSpec.Builder builder, Map<TypeName, Integer> slots) {
+        final StringBuilder table = new StringBuilder("{");
+        for (Field field : mFieldSpecList) {
+            table.append(field.mIndex == 0 ? "" : ", ").append(field.mPatchSlot);
+        }
+        table.append("}");
+        builder.addField(FieldSpec.builder(ArrayTypeName.of(TypeName.INT), "SLOTS", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", table)
+                .build());
+        for (TypeName kind : slots.keySet()) {
+            final String arrayName = patchArrayName(kind);
+            final String kindName = kind.isPrimitive() ? kind.toString() : "object";
+            builder.addMethod(MethodSpec.methodBuilder(kindName + "Value")
+                    .addJavadoc("Value of the " + (kind.isPrimitive() ? kindName : "non-primitive")
+                            + " field of given FIELD_* index, meaningful only if {@link #isChanged} for the index\n")
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(TypeName.INT, "index")
+                    .returns(kind)
+                    .addStatement("return $N[SLOTS[index]]", arrayName)
+                    .build());
+        }
+    }
+
+    /**
+     * Generate method diff, which records every field whose value differs in a patch without touching the entities.
+     * Fields which {@link #update} would not write, such as null values of omit-null fields, are not recorded.
+     */
+    private MethodSpec generateDiffMethod() {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final String maskName = "patch.mask";
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("diff")
+                .addJavadoc("Record fields of newEntity which differ from oldEntity, neither entity is modified.\n"
+                        + "Values of reference types are recorded by reference, not copied.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mParamSpecOfOldEntity)
+                .addParameter(mParamSpecOfNewEntity)
+                .returns(patchType)
+                .addCode(generateNullCheckStatement(mParamSpecOfOldEntity))
+                .addCode(generateNullCheckStatement(mParamSpecOfNewEntity))
+                .addStatement("final $T patch = new $T()", patchType, patchType);
+        for (Field field : mFieldSpecList) {
+            builder.addCode(field.createDiffStatement(mParamSpecOfOldEntity, mParamSpecOfNewEntity, maskName, isWideMask()));
+        }
+        return builder.addStatement("return patch").build();
+    }
+
+    /**
+     * Generate the update method which records the values it overwrites in a journal, which is a patch.
+     * The journal is cleared first, so the same journal can be reused by every update without allocation.
+     * Fields are written only if their values differ, so only overwritten values are recorded.
+     * Types with fields merged in place are rejected by the processor, since only references could be restored.
+     *
+     * @param methodName name of this method
+     * @param visibility access modifier of this method
+     */
+    private MethodSpec generateJournaledUpdateMethod(final String methodName, final Modifier visibility) {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final ParameterSpec journal = ParameterSpec.builder(patchType, "journal", Modifier.FINAL).build();
+        final boolean wide = isWideMask();
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addJavadoc("Same as {@link #update($T, $T)}, but previous values of written fields are recorded in $N,\n"
+                                + "so the update can be undone by {@link #rollback}. $N is cleared first and can be reused.\n",
+                        mEntityClassName, mEntityClassName, journal, journal)
+                .addModifiers(visibility)
+                .addParameter(mParamSpecOfOldEntity)
+                .addParameter(mParamSpecOfNewEntity)
+                .addParameter(journal)
+                .addCode(generateNullCheckStatement(mParamSpecOfOldEntity))
+                .addCode(generateNullCheckStatement(mParamSpecOfNewEntity))
+                .addCode(generateNullCheckStatement(journal));
+        if (wide) {
+            builder.addStatement("$T.fill($N.mask, 0L)", Arrays.class, journal);
+        } else {
+            builder.addStatement("$N.mask = 0L", journal);
+        }
+        beginWrite(builder, mParamSpecOfOldEntity);
+        addVersionCheck(builder, mParamSpecOfOldEntity, mParamSpecOfNewEntity, "return");
+        for (Field field : mFieldSpecList) {
+            builder.addCode(field.createJournaledUpdateStatement(mParamSpecOfOldEntity, mParamSpecOfNewEntity, journal, wide));
+        }
+        endWrite(builder, mParamSpecOfOldEntity);
+        return builder.build();
+    }
+
+    /**
+     * Generate the journaled update which wraps the private method writing fields, reporting metrics and notifying
+     * listeners like {@link #generateWrappedUpdateWithChangesMethod}. The journal holds exactly the previous values
+     * of changed fields, so it is passed to listeners as is.
+     */
+    private MethodSpec generateWrappedJournaledUpdateMethod() {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final ParameterSpec journal = ParameterSpec.builder(patchType, "journal", Modifier.FINAL).build();
+        final ParameterSpec oldParam = mParamSpecOfOldEntity;
+        final ParameterSpec newParam = mParamSpecOfNewEntity;
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("update")
+                .addJavadoc("Same as {@link #update($T, $T)}, but previous values of written fields are recorded in $N,\n"
+                                + "so the update can be undone by {@link #rollback}. $N is cleared first and can be reused.\n",
+                        mEntityClassName, mEntityClassName, journal, journal)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(oldParam)
+                .addParameter(newParam)
+                .addParameter(journal);
+        if (mMetricsSink != null && mIsMetricsTimed) {
+            builder.addStatement("final long start = $T.nanoTime()", System.class);
+        }
+        builder.addStatement("$N($N, $N, $N)", sJOURNAL_FIELDS, oldParam, newParam, journal);
+        if (mMetricsSink != null) {
+            addMetricsStatement(builder, journal.name + ".mask");
+        }
+        if (mIsObserved) {
+            builder.beginControlFlow("if (!$N.isEmpty())", journal)
+                    .beginControlFlow("for (final $T listener : mListeners)", listenerType())
+                    .addStatement("listener.onFieldsChanged($N, $N)", oldParam, journal)
+                    .endControlFlow()
+                    .endControlFlow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Add the statement reporting an update to {@link #mMetricsSink}, after the local "start" if timed
+     *
+     * @param builder  the method updating an entity
+     * @param maskName expression of the mask of changed fields, a long or a long[]
+     */
+    private void addMetricsStatement(MethodSpec.Builder builder, String maskName) {
+        final String elapsed = mIsMetricsTimed ? "$T.nanoTime() - start" : "-1L";
+        final Object[] elapsedArgs = mIsMetricsTimed ? new Object[]{System.class} : new Object[0];
+        if (isWideMask()) {
+            builder.addStatement("int changedFields = 0")
+                    .beginControlFlow("for (final long word : $L)", maskName)
+                    .addStatement("changedFields += $T.bitCount(word)", Long.class)
+                    .endControlFlow()
+                    .addStatement("$T.onUpdate($T.class, changedFields, " + elapsed + ")",
+                            Field.flatten(mMetricsSink, mEntityClassName, elapsedArgs));
+        } else {
+            builder.addStatement("$T.onUpdate($T.class, $T.bitCount($L), " + elapsed + ")",
+                    Field.flatten(mMetricsSink, mEntityClassName, Long.class, maskName, elapsedArgs));
+        }
+    }
+
+    /**
+     * Generate method rollback, which restores the values recorded by a journaled update
+     */
+    private MethodSpec generateRollbackMethod() {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final ParameterSpec target = ParameterSpec.builder(mEntityClassName, "target", Modifier.FINAL).build();
+        final ParameterSpec journal = ParameterSpec.builder(patchType, "journal", Modifier.FINAL).build();
+        return MethodSpec.methodBuilder("rollback")
+                .addJavadoc("Undo the update of $N recorded in $N by {@link #update($T, $T, $T)}\n",
+                        target, journal, mEntityClassName, mEntityClassName, patchType)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(target)
+                .addParameter(journal)
+                .addStatement("apply($N, $N)", target, journal)
+                .build();
+    }
+
+    /**
+     * Generate method apply, which writes the fields recorded in a patch to an entity
+     *
+     * @param hasReferences whether the patch holds values of reference types, which are cast when applied
+     */
+    private MethodSpec generateApplyMethod(boolean hasReferences) {
+        final ClassName patchType = ClassName.get(mPackageElement.getQualifiedName().toString(), mGeneratedClassName, sPATCH);
+        final ParameterSpec target = ParameterSpec.builder(mEntityClassName, "target", Modifier.FINAL).build();
+        final ParameterSpec patch = ParameterSpec.builder(patchType, "patch", Modifier.FINAL).build();
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("apply")
+                .addJavadoc("Write fields recorded in a patch produced by {@link #diff} to target.\n"
+                        + "The same patch can be applied to any number of entities.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(target)
+                .addParameter(patch)
+                .addCode(generateNullCheckStatement(target))
+                .addCode(generateNullCheckStatement(patch));
+        if (hasReferences) {
+            builder.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class).addMember("value", "$S", "unchecked").build());
+        }
+        beginWrite(builder, target);
+        for (Field field : mFieldSpecList) {
+            if (isWideMask()) {
+                builder.beginControlFlow("if (($N.mask[$N >>> 6] & 1L << $N) != 0L)", patch, field.mIndexName, field.mIndexName);
+            } else {
+                builder.beginControlFlow("if (($N.mask & 1L << $N) != 0L)", patch, field.mIndexName);
+            }
+            final CodeBlock.Builder write = CodeBlock.builder();
+            if (field.mFieldSpec.type.isPrimitive()) {
+                field.addWriteStatement(write, target, "$N.$N[$L]", patch, patchArrayName(field.patchKind()), field.mPatchSlot);
+            } else {
+                field.addWriteStatement(write, target, "($T) $N.$N[$L]", field.mFieldSpec.type, patch, sPATCH_OBJECTS, field.mPatchSlot);
+            }
+            builder.addCode(write.build())
+                    .endControlFlow();
+        }
+        endWrite(builder, target);
+        return builder.build();
+    }
+
+    /**
+     * Generate method writeDelta, which encodes the fields of newEntity differing from oldEntity into a buffer:
+     * <ol>
+     * <li>A presence bitmap of (COUNT_FIELDS + 7) / 8 bytes, bit FIELD_* of which is set if the field is encoded</li>
+     * <li>Values of encoded fields in the order of their indexes. int and long are zigzag varints, other primitives
+     * are fixed-width in the byte order of the buffer, boxed values have a leading null byte, strings are varint length
+     * plus one followed by UTF-8 bytes and enums are varint ordinal plus one, zero standing for null</li>
+     * </ol>
+     * The bitmap is written last at the reserved position, so values are written straight to the buffer.
+     */
+    private MethodSpec generateWriteDeltaMethod() {
+        final boolean wide = isWideMask();
+        final String maskName = "changes";
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("writeDelta")
+                .addJavadoc("Encode fields of newEntity which differ from oldEntity into buffer, starting at its position.\n"
+                        + "Primitives, boxed primitives, strings and enums are encoded, fields of other types are left out.\n"
+                        + "@return the mask of encoded fields indexed by FIELD_* constants\n"
+                        + "@throws $T if buffer is too small, its position is then undefined\n", BufferOverflowException.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mParamSpecOfOldEntity)
+                .addParameter(mParamSpecOfNewEntity)
+                .addParameter(ByteBuffer.class, sBUFFER, Modifier.FINAL)
+                .returns(wide ? ArrayTypeName.of(TypeName.LONG) : TypeName.LONG)
+                .addCode(generateNullCheckStatement(mParamSpecOfOldEntity))
+                .addCode(generateNullCheckStatement(mParamSpecOfNewEntity))
+                .addCode(generateNullCheckStatement(sBUFFER));
+        if (wide) {
+            builder.addStatement("final long[] $N = new long[($N + 63) >>> 6]", maskName, sCOUNT_FIELDS);
+        } else {
+            builder.addStatement("long $N = 0L", maskName);
+        }
+        builder.addStatement("final int start = $N.position()", sBUFFER)
+                .addStatement("$N.position(start + (($N + 7) >>> 3))", sBUFFER, sCOUNT_FIELDS);
+        for (Field field : mFieldSpecList) {
+            if (field.mCodec != sCODEC_NONE) {
+                builder.addCode(field.createWriteDeltaStatement(mParamSpecOfOldEntity, mParamSpecOfNewEntity, maskName, wide));
+            }
+        }
+        builder.beginControlFlow("for (int i = 0; i < (($N + 7) >>> 3); i++)", sCOUNT_FIELDS);
+        if (wide) {
+            builder.addStatement("$N.put(start + i, (byte) ($N[i >>> 3] >>> ((i & 7) << 3)))", sBUFFER, maskName);
+        } else {
+            builder.addStatement("$N.put(start + i, (byte) ($N >>> (i << 3)))", sBUFFER, maskName);
+        }
+        return builder.endControlFlow()
+                .addStatement("return $N", maskName)
+                .build();
+    }
+
+    /**
+     * Generate method readDelta, which decodes fields encoded by writeDelta and writes them to an entity
+     */
+    private MethodSpec generateReadDeltaMethod() {
+        final boolean wide = isWideMask();
+        final String maskName = "changes";
+        final ParameterSpec target = ParameterSpec.builder(mEntityClassName, "target", Modifier.FINAL).build();
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("readDelta")
+                .addJavadoc("Decode fields encoded by {@link #writeDelta} from buffer, starting at its position, and write them to target\n"
+                        + "@return the mask of decoded fields indexed by FIELD_* constants\n"
+                        + "@throws $T if buffer ends before the encoded fields\n", BufferUnderflowException.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(ByteBuffer.class, sBUFFER, Modifier.FINAL)
+                .addParameter(target)
+                .returns(wide ? ArrayTypeName.of(TypeName.LONG) : TypeName.LONG)
+                .addCode(generateNullCheckStatement(sBUFFER))
+                .addCode(generateNullCheckStatement(target));
+        beginWrite(builder, target);
+        if (wide) {
+            builder.addStatement("final long[] $N = new long[($N + 63) >>> 6]", maskName, sCOUNT_FIELDS);
+        } else {
+            builder.addStatement("long $N = 0L", maskName);
+        }
+        builder.beginControlFlow("for (int i = 0; i < (($N + 7) >>> 3); i++)", sCOUNT_FIELDS);
+        if (wide) {
+            builder.addStatement("$N[i >>> 3] |= ($N.get() & 0xFFL) << ((i & 7) << 3)", maskName, sBUFFER);
+        } else {
+            builder.addStatement("$N |= ($N.get() & 0xFFL) << (i << 3)", maskName, sBUFFER);
+        }
+        builder.endControlFlow();
+        for (Field field : mFieldSpecList) {
+            if (field.mCodec == sCODEC_NONE) {
+                continue;
+            }
+            if (wide) {
+                builder.beginControlFlow("if (($N[$N >>> 6] & 1L << $N) != 0L)", maskName, field.mIndexName, field.mIndexName);
+            } else {
+                builder.beginControlFlow("if (($N & 1L << $N) != 0L)", maskName, field.mIndexName);
+            }
+            final CodeBlock.Builder write = CodeBlock.builder();
+            field.addWriteStatement(write, target, field.decodeFormat(), field.decodeArgs());
+            builder.addCode(write.build())
+                    .endControlFlow();
+        }
+        builder.addStatement("return $N", maskName);
+        endWrite(builder, target);
+        return builder.build();
+    }
+
+    /**
+     * Generate method merge for immutable entities, which returns old entity itself if no field differs,
+     * otherwise a single new entity created by the constructor or builder from merged values.
+     * Each merged value is the new one if it differs and is not an omitted null, otherwise the old one.
+     */
+    private MethodSpec generateMergeMethod() {
+        final ParameterSpec oldParam = mParamSpecOfOldEntity;
+        final ParameterSpec newParam = mParamSpecOfNewEntity;
+        String changed = "changed";
+        for (Field field : mImmutableFields) {
+            if (field.mFieldSpec.name.equals(changed)) {
+                changed = "anyChanged";
+            }
+        }
+        final MethodSpec.Builder builder = MethodSpec.methodBuilder("merge")
+                .addJavadoc("Merge newEntity into oldEntity without modifying either of them.\n"
+                        + "@return oldEntity itself if no field differs, otherwise a new entity holding merged values\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(oldParam)
+                .addParameter(newParam)
+                .returns(mEntityClassName)
+                .addCode(generateNullCheckStatement(oldParam))
+                .addCode(generateNullCheckStatement(newParam));
+        addVersionCheck(builder, oldParam, newParam, "return $N", oldParam);
+        builder.addStatement("boolean $N = false", changed);
+        for (Field field : mImmutableFields) {
+            final FieldSpec local = field.mFieldSpec;
+            if (field.mIndex < 0) {
+                builder.addStatement("final $T $N = " + field.readFormat(), Field.flatten(local.type, local, field.readArgs(oldParam)));
+                continue;
+            }
+            builder.addStatement("final $T $N", local.type, local);
+            if (!local.type.isPrimitive() && field.mIsOmitNull) {
+                builder.beginControlFlow("if (" + field.readFormat() + " != null && (" + field.differsFormat() + "))",
+                        Field.concat(field.readArgs(newParam), field.differsArgs(oldParam, newParam)));
+            } else {
+                builder.beginControlFlow("if (" + field.differsFormat() + ")", field.differsArgs(oldParam, newParam));
+            }
+            builder.addStatement("$N = " + field.readFormat(), Field.flatten(local, field.readArgs(newParam)))
+                    .addStatement("$N = true", changed)
+                    .nextControlFlow("else")
+                    .addStatement("$N = " + field.readFormat(), Field.flatten(local, field.readArgs(oldParam)))
+                    .endControlFlow();
+        }
+        builder.beginControlFlow("if (!$N)", changed)
+                .addStatement("return $N", oldParam)
+                .endControlFlow();
+
+        final StringBuilder format = new StringBuilder();
+        final List<Object> args = new ArrayList<>();
+        if (mBuilderSetters == null) {
+            format.append("return new $T(");
+            args.add(mEntityClassName);
+            for (int i = 0; i < mImmutableFields.size(); i++) {
+                format.append(i == 0 ? "$N" : ", $N");
+                args.add(mImmutableFields.get(i).mFieldSpec);
+            }
+            format.append(")");
+        } else {
+            format.append("return $T.$N()");
+            args.add(mEntityClassName);
+            args.add(mFactory.getSimpleName().toString());
+            for (int i = 0; i < mImmutableFields.size(); i++) {
+                format.append(".$N($N)");
+                args.add(mBuilderSetters.get(i).getSimpleName().toString());
+                args.add(mImmutableFields.get(i).mFieldSpec);
+            }
+            format.append(".$N()");
+            args.add(mBuildMethod.getSimpleName().toString());
+        }
+        return builder.addStatement(format.toString(), args.toArray()).build();
+    }
+
+    /**
+     * Open the write section of seqlock mode, which holds the monitor of entity and makes the sequence odd.
+     * Nothing is generated unless the sequence field is set.
+     * <p/>
+     * A volatile write only keeps preceding writes before it, so field writes could be seen before the sequence is odd.
+     * The sequence is therefore incremented by its field updater, a full fence. The consolidated registry has no
+     * field updater, there the volatile increment is followed by a volatile read of the sequence, which later writes
+     * cannot move before.
+     *
+     * @param builder the method writing entity
+     * @param entity  name of the entity to write
+     */
+    private void beginWrite(MethodSpec.Builder builder, Object entity) {
+        if (mSequenceField == null) {
+            return;
+        }
+        builder.beginControlFlow("synchronized ($N)", entity);
+        if (mIsConsolidated) {
+            builder.addStatement("$N.$N++", entity, mSequenceField)
+                    .beginControlFlow("if (($N.$N & 1) == 0)", entity, mSequenceField)
+                    .addStatement("throw new $T($S)", IllegalStateException.class, "Sequence written outside of updates")
+                    .endControlFlow();
+        } else {
+            builder.addStatement("$N.incrementAndGet($N)", sSEQUENCE, entity);
+        }
+        builder.beginControlFlow("try");
+    }
+
+    /**
+     * Close the write section opened by {@link #beginWrite(MethodSpec.Builder, Object)}, making the sequence even again
+     */
+    private void endWrite(MethodSpec.Builder builder, Object entity) {
+        if (mSequenceField == null) {
+            return;
+        }
+        builder.nextControlFlow("finally");
+        if (mIsConsolidated) {
+            builder.addStatement("$N.$N++", entity, mSequenceField);
+        } else {
+            builder.addStatement("$N.incrementAndGet($N)", sSEQUENCE, entity);
+        }
+        builder.endControlFlow()
+                .endControlFlow();
+    }
+
+    /**
+     * Generate the field updater of the sequence field, which increments it with a full fence in write sections.
+     * validate reads the sequence by the field updater too: Java 7 has no load fence, and a syntactic volatile read
+     * only keeps later reads after it, while the intrinsic read of the field updater is not reordered with earlier
+     * reads either, which is what the seqlock of java.util.concurrent relied on before Java 8.
+     */
+    private FieldSpec generateSequenceUpdater() {
+        final Class<?> updaterType = TypeName.INT.equals(mSequenceField.type) ? AtomicIntegerFieldUpdater.class : AtomicLongFieldUpdater.class;
+        final ParameterizedTypeName type = ParameterizedTypeName.get(ClassName.get(updaterType), mSequenceOwner);
+        return FieldSpec.builder(type, sSEQUENCE, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$T.newUpdater($T.class, $S)", updaterType, mSequenceOwner, mSequenceField.name)
                 .build();
     }
 
     /**
-     * Add a field for which we should generate update statement
-     *
-     * @param field Declaration of a field
+     * Generate the reader side of seqlock mode: readStamp and validate to read any fields without locking,
+     * and snapshot to copy all fields consistently
      */
-    @SuppressWarnings("UnusedDeclaration")
-    public UpdaterGenerator addField(VariableElement field) {
-        return addField(field, false);
-    }
+    private List<MethodSpec> generateSequenceReaders() {
+        final TypeName stampType = mSequenceField.type;
+        final ParameterSpec entity = ParameterSpec.builder(mEntityClassName, sENTITY, Modifier.FINAL).build();
+        final ParameterSpec stamp = ParameterSpec.builder(stampType, "stamp", Modifier.FINAL).build();
+        final List<MethodSpec> methods = new ArrayList<>();
+        methods.add(MethodSpec.methodBuilder("readStamp")
+                .addJavadoc("Wait until no update of entity is in progress, and return the stamp to pass to {@link #validate}\n"
+                        + "after reading fields of entity. This method never blocks updates.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entity)
+                .returns(stampType)
+                .addCode(generateNullCheckStatement(entity))
+                .addStatement("$T sequence", stampType)
+                .beginControlFlow("while (((sequence = $N.$N) & 1) != 0)", entity, mSequenceField)
+                .addStatement("$T.yield()", Thread.class)
+                .endControlFlow()
+                .addStatement("return sequence")
+                .build());
+        methods.add(MethodSpec.methodBuilder("validate")
+                .addJavadoc("Whether entity was not updated since stamp was taken by {@link #readStamp},\n"
+                        + "values read in between are consistent only if this returns true.\n"
+                        + "The sequence is only read, so concurrent readers do not contend for its cache line.\n"
+                        + "It is read by its field updater, since reads before a volatile read may be reordered after it.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(entity)
+                .addParameter(stamp)
+                .returns(TypeName.BOOLEAN)
+                .addCode(generateNullCheckStatement(entity))
+                .addStatement("return $N.get($N) == $N", sSEQUENCE, entity, stamp)
+                .build());
 
+        final ParameterSpec source = ParameterSpec.builder(mEntityClassName, "source", Modifier.FINAL).build();
+        final ParameterSpec target = ParameterSpec.builder(mEntityClassName, "target", Modifier.FINAL).build();
+        final MethodSpec.Builder snapshot = MethodSpec.methodBuilder("snapshot")
+                .addJavadoc("Copy all fields of source to target as of a single point between updates of source,\n"
+                        + "retrying while source is updated concurrently. target must not be shared with other threads.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(source)
+                .addParameter(target)
+                .addCode(generateNullCheckStatement(source))
+                .addCode(generateNullCheckStatement(target))
+                .beginControlFlow("while (true)")
+                .addStatement("final $T stamp = readStamp($N)", stampType, source);
+        for (Field field : mFieldSpecList) {
+            final CodeBlock.Builder copy = CodeBlock.builder();
+            field.addAssignStatement(copy, target, source);
+            snapshot.addCode(copy.build());
+        }
+        methods.add(snapshot.beginControlFlow("if (validate($N, stamp))", source)
+                .addStatement("return")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
+        return methods;
+    }
 
     /**
-     * Add a field for which we should generate update statement
-     *
-     * @param field    Declaration of a field
-     * @param omitNull Whether or not should null value be ignored when updating this field
+     * Add the static helper methods used by readTokens, only those which are needed.
+     * A value from the server must not abort the whole read, so an unknown enum constant or an empty string
+     * read as char is taken as null.
      */
-    public UpdaterGenerator addField(VariableElement field, boolean omitNull) {
-        mFieldSpecList.add(Field.get(field, omitNull));
-        return this;
+    private void addTokenHelpers(TypeSpec.Builder builder) {
+        boolean enumValue = false;
+        boolean charValue = false;
+        for (Field field : mFieldSpecList) {
+            enumValue |= field.mCodec == sCODEC_ENUM;
+            charValue |= TypeName.CHAR.equals(field.mWireType);
+        }
+        final ParameterSpec reader = ParameterSpec.builder(mTokenReader, "reader", Modifier.FINAL).build();
+        if (enumValue) {
+            final TypeVariableName e = TypeVariableName.get("E", ParameterizedTypeName.get(ClassName.get(Enum.class), TypeVariableName.get("E")));
+            builder.addMethod(MethodSpec.methodBuilder("readEnum")
+                    .addJavadoc("Read an enum constant by name, null if the name is not a constant of type\n")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addTypeVariable(e)
+                    .addParameter(reader)
+                    .addParameter(ParameterizedTypeName.get(ClassName.get(Class.class), e), "type", Modifier.FINAL)
+                    .returns(e)
+                    .addException(IOException.class)
+                    .addStatement("final String name = $N.nextString()", reader)
+                    .beginControlFlow("try")
+                    .addStatement("return $T.valueOf(type, name)", Enum.class)
+                    .nextControlFlow("catch ($T e)", IllegalArgumentException.class)
+                    .addStatement("return null")
+                    .endControlFlow()
+                    .build());
+        }
+        if (charValue) {
+            builder.addMethod(MethodSpec.methodBuilder("readChar")
+                    .addJavadoc("Read the first char of a string, null if the string is empty\n")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addParameter(reader)
+                    .returns(Character.class)
+                    .addException(IOException.class)
+                    .addStatement("final String value = $N.nextString()", reader)
+                    .addStatement("return value.isEmpty() ? null : value.charAt(0)")
+                    .build());
+        }
     }
 
     /**
-     * Add a property, the getter and setter will be used in its update statement
-     *
-     * @param property Declaration of a field
-     * @param getter   Declaration of the field's getter method
-     * @param setter   Declaration of the field's setter method
-     * @param omitNull Whether or not should null value be ignored when updating this field
+     * Add the static helper methods used by the codec of fields, only those which are needed
      */
-    public UpdaterGenerator addProperty(VariableElement property, ExecutableElement getter, ExecutableElement setter, boolean omitNull) {
-        mFieldSpecList.add(Property.get(property, getter, setter, omitNull));
-        return this;
+    private void addCodecHelpers(TypeSpec.Builder builder) {
+        boolean varLong = false;
+        boolean string = false;
+        boolean enumValue = false;
+        for (Field field : mFieldSpecList) {
+            varLong |= field.mCodec == sCODEC_STRING || field.mCodec == sCODEC_ENUM
+                    || TypeName.INT.equals(field.mWireType) || TypeName.LONG.equals(field.mWireType);
+            string |= field.mCodec == sCODEC_STRING;
+            enumValue |= field.mCodec == sCODEC_ENUM;
+        }
+        if (!varLong) {
+            return;
+        }
+        final ParameterSpec buffer = ParameterSpec.builder(ByteBuffer.class, sBUFFER, Modifier.FINAL).build();
+        builder.addMethod(MethodSpec.methodBuilder("writeVarLong")
+                .addJavadoc("Write a zigzag varint, 1 byte for values in [-64, 63]\n")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(buffer)
+                .addParameter(TypeName.LONG, "value")
+                .addStatement("long bits = value << 1 ^ value >> 63")
+                .beginControlFlow("while ((bits & ~0x7FL) != 0L)")
+                .addStatement("$N.put((byte) (bits & 0x7F | 0x80))", buffer)
+                .addStatement("bits >>>= 7")
+                .endControlFlow()
+                .addStatement("$N.put((byte) bits)", buffer)
+                .build());
+        builder.addMethod(MethodSpec.methodBuilder("readVarLong")
+                .addJavadoc("Read a zigzag varint written by {@link #writeVarLong}\n")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(buffer)
+                .returns(TypeName.LONG)
+                .addStatement("long bits = 0L")
+                .addStatement("int shift = 0")
+                .addStatement("byte b")
+                .beginControlFlow("do")
+                .addStatement("b = $N.get()", buffer)
+                .addStatement("bits |= (long) (b & 0x7F) << shift")
+                .addStatement("shift += 7")
+                .endControlFlow("while (b < 0)")
+                .addStatement("return bits >>> 1 ^ -(bits & 1L)")
+                .build());
+        if (string) {
+            builder.addField(FieldSpec.builder(Charset.class, "sUTF_8", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("$T.forName($S)", Charset.class, "UTF-8")
+                    .build());
+            builder.addMethod(MethodSpec.methodBuilder("writeString")
+                    .addJavadoc("Write varint length plus one, zero for null, followed by UTF-8 bytes\n")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addParameter(buffer)
+                    .addParameter(String.class, "value", Modifier.FINAL)
+                    .beginControlFlow("if (value == null)")
+                    .addStatement("writeVarLong($N, 0L)", buffer)
+                    .addStatement("return")
+                    .endControlFlow()
+                    .addStatement("final byte[] bytes = value.getBytes(sUTF_8)")
+                    .addStatement("writeVarLong($N, bytes.length + 1L)", buffer)
+                    .addStatement("$N.put(bytes)", buffer)
+                    .build());
+            builder.addMethod(MethodSpec.methodBuilder("readString")
+                    .addJavadoc("Read a string written by {@link #writeString}, decoding from the backing array if there is one\n")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addParameter(buffer)
+                    .returns(String.class)
+                    .addStatement("final int length = (int) readVarLong($N) - 1", buffer)
+                    .beginControlFlow("if (length < 0)")
+                    .addStatement("return null")
+                    .endControlFlow()
+                    .beginControlFlow("if ($N.remaining() < length)", buffer)
+                    .addStatement("throw new $T()", BufferUnderflowException.class)
+                    .endControlFlow()
+                    .beginControlFlow("if ($N.hasArray())", buffer)
+                    .addStatement("final String value = new String($N.array(), $N.arrayOffset() + $N.position(), length, sUTF_8)", buffer, buffer, buffer)
+                    .addStatement("$N.position($N.position() + length)", buffer, buffer)
+                    .addStatement("return value")
+                    .endControlFlow()
+                    .addStatement("final byte[] bytes = new byte[length]")
+                    .addStatement("$N.get(bytes)", buffer)
+                    .addStatement("return new String(bytes, sUTF_8)")
+                    .build());
+        }
+        if (enumValue) {
+            final TypeVariableName e = TypeVariableName.get("E");
+            builder.addMethod(MethodSpec.methodBuilder("readEnum")
+                    .addJavadoc("Read an enum constant written as varint ordinal plus one, zero for null\n")
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                    .addTypeVariable(e)
+                    .addParameter(buffer)
+                    .addParameter(ArrayTypeName.of(e), "values", Modifier.FINAL)
+                    .returns(e)
+                    .addStatement("final int ordinal = (int) readVarLong($N)", buffer)
+                    .addStatement("return ordinal == 0 ? null : values[ordinal - 1]")
+                    .build());
+        }
     }
 
     /**
-     * Generate the update method
+     * Generate the update method which reports whether any field changed, used to merge nested entities
      *
      * @param methodName name of this method
      * @param oldTSpec   declaration of first parameter
      * @param newTSpec   declaration of second parameter
-     * @return the definition of this method, including method signature, modifiers, method body and return type
+     * @return the definition of this method
      */
-    private MethodSpec generateUpdateMethod(final String methodName, final ParameterSpec oldTSpec, final ParameterSpec newTSpec) {
-        final List<CodeBlock> updateStatements = generateUpdaterBlocks(oldTSpec, newTSpec);
+    private MethodSpec generateUpdateHasChangesMethod(final String methodName, final ParameterSpec oldTSpec, final ParameterSpec newTSpec) {
         final MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addJavadoc("Same as {@link #update}, returns whether any field changed\n")
                 .addModifiers(Modifier.PUBLIC)
                 .addParameter(oldTSpec)
                 .addParameter(newTSpec)
-                .addAnnotation(Override.class)
-                .addCode(generateNullCheckStatement(oldTSpec))
-                .addCode(generateNullCheckStatement(newTSpec));
-
-        for (CodeBlock updateStatement : updateStatements) {
-            builder.addCode(updateStatement);
+                .returns(TypeName.BOOLEAN);
+        if (isWideMask()) {
+            builder.beginControlFlow("for (final long changes : updateWithChanges($N, $N))", oldTSpec, newTSpec)
+                    .beginControlFlow("if (changes != 0L)")
+                    .addStatement("return true")
+                    .endControlFlow()
+                    .endControlFlow()
+                    .addStatement("return false");
+        } else {
+            builder.addStatement("return updateWithChanges($N, $N) != 0L", oldTSpec, newTSpec);
         }
         return builder.build();
     }
 
+    /**
+     * Generate constants of field indexes, which are the bit positions in change masks
+     */
+    private List<FieldSpec> generateIndexConstants() {
+        List<FieldSpec> constants = new ArrayList<>();
+        for (Field field : mFieldSpecList) {
+            constants.add(FieldSpec.builder(TypeName.INT, field.mIndexName, Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("$L", field.mIndex)
+                    .build());
+        }
+        constants.add(FieldSpec.builder(TypeName.INT, sCOUNT_FIELDS, Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", mFieldSpecList.size())
+                .build());
+        return constants;
+    }
+
     /**
      * Generate null-check code block
      *
@@ -216,11 +2447,90 @@ public class UpdaterGenerator {
         if (mIsTopClass || mIsStatic) {
             builder.addAnnotation(mUpdaterAnnotation);
         }
-        return builder
-                .addSuperinterface(mUpdaterNameWithTypeVariable)
+        for (FieldSpec constant : generateIndexConstants()) {
+            builder.addField(constant);
+        }
+        for (FieldSpec nestedUpdater : mNestedUpdaters.values()) {
+            builder.addField(nestedUpdater);
+        }
+        builder.addSuperinterface(mUpdaterNameWithTypeVariable)
                 .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
-                .addMethod(generateUpdateMethod("update", mParamSpecOfOldEntity, mParamSpecOfNewEntity))
-                .build();
+                .addMethod(generateUpdateMethod("update", mParamSpecOfOldEntity, mParamSpecOfNewEntity, null))
+                .addMethod(isUpdateWrapped()
+                        ? generateWrappedUpdateWithChangesMethod(null)
+                        : generateUpdateWithChangesMethod("updateWithChanges", Modifier.PUBLIC, mParamSpecOfOldEntity, mParamSpecOfNewEntity, null))
+                .addMethod(generateUpdateHasChangesMethod("updateHasChanges", mParamSpecOfOldEntity, mParamSpecOfNewEntity));
+        final ParameterSpec fieldMask = generateFieldMaskParam();
+        if (mIsMasked) {
+            builder.addMethod(generateUpdateMethod("update", mParamSpecOfOldEntity, mParamSpecOfNewEntity, fieldMask))
+                    .addMethod(isUpdateWrapped()
+                            ? generateWrappedUpdateWithChangesMethod(fieldMask)
+                            : generateUpdateWithChangesMethod("updateWithChanges", Modifier.PUBLIC, mParamSpecOfOldEntity, mParamSpecOfNewEntity, fieldMask));
+        }
+        if (mKeyField != null) {
+            builder.addMethod(generateMergeAllMethod())
+                    .addType(generateMergeResultType())
+                    .addType(generateCacheType());
+        }
+        /**
+         * The patch holds the diff, the previous values passed to listeners and the journal
+         */
+        if (mIsDiffed || mIsObserved || mIsJournaled) {
+            final Map<TypeName, Integer> patchSlots = assignPatchSlots();
+            builder.addType(generatePatchType(patchSlots));
+            if (mIsDiffed) {
+                builder.addMethod(generateDiffMethod());
+            }
+            if (mIsDiffed || mIsJournaled) {
+                builder.addMethod(generateApplyMethod(patchSlots.containsKey(TypeName.OBJECT)));
+            }
+        }
+        if (mIsDeltaEncoded) {
+            builder.addMethod(generateWriteDeltaMethod())
+                    .addMethod(generateReadDeltaMethod());
+            addCodecHelpers(builder);
+        }
+        if (mFactory != null) {
+            builder.addMethod(generateMergeMethod());
+        }
+        if (isUpdateWrapped()) {
+            builder.addMethod(generateUpdateWithChangesMethod(sUPDATE_FIELDS, Modifier.PRIVATE, mParamSpecOfOldEntity, mParamSpecOfNewEntity, null));
+            if (mIsMasked) {
+                builder.addMethod(generateUpdateWithChangesMethod(sUPDATE_FIELDS, Modifier.PRIVATE, mParamSpecOfOldEntity, mParamSpecOfNewEntity, fieldMask));
+            }
+        }
+        if (mIsObserved) {
+            addListenerRegistry(builder);
+            builder.addMethod(generateRecordMethod());
+        }
+        if (mTokenReader != null) {
+            builder.addMethod(generateReadTokensMethod());
+            addTokenHelpers(builder);
+        }
+        if (mFieldAccessor != null) {
+            addFieldAccessor(builder);
+        }
+        if (mIsJournaled) {
+            if (isUpdateWrapped()) {
+                builder.addMethod(generateWrappedJournaledUpdateMethod())
+                        .addMethod(generateJournaledUpdateMethod(sJOURNAL_FIELDS, Modifier.PRIVATE));
+            } else {
+                builder.addMethod(generateJournaledUpdateMethod("update", Modifier.PUBLIC));
+            }
+            builder.addMethod(generateRollbackMethod());
+        }
+        if (mVersionField != null) {
+            for (MethodSpec method : generateVersionMethods()) {
+                builder.addMethod(method);
+            }
+        }
+        if (mSequenceField != null) {
+            builder.addField(generateSequenceUpdater());
+            for (MethodSpec reader : generateSequenceReaders()) {
+                builder.addMethod(reader);
+            }
+        }
+        return builder.build();
     }
 
     /**
@@ -234,14 +2544,16 @@ public class UpdaterGenerator {
     }
 
     /**
-     * Write generated java file definition to file system by calling {@link Filer#createSourceFile(CharSequence, Element...)}
+     * Write generated java file definition to file system by calling {@link Filer#createSourceFile(CharSequence, Element...)}.
+     * The entity class is given as the only originating element, as required by isolating incremental processing.
      *
      * @param environment The processing environment
      */
     public void writeJavaFile(ProcessingEnvironment environment) throws IOException {
         JavaFile javaFile = generateJavaFile();
 
-        JavaFileObject jfo = environment.getFiler().createSourceFile(mGeneratedClassName, mPackageElement);
+        JavaFileObject jfo = environment.getFiler().createSourceFile(
+                mPackageElement.getQualifiedName() + "." + mGeneratedClassName, mTypeElement);
         try (Writer writer = jfo.openWriter()) {
             javaFile.writeTo(writer);
             writer.flush();
@@ -261,29 +2573,370 @@ public class UpdaterGenerator {
          * The omit null flag
          */
         public final boolean mIsOmitNull;
+        /**
+         * Bitwise or of FLAG_* constants
+         */
+        public final int mFlags;
+        /**
+         * Index of this field among all updatable fields, which is also its bit in change masks
+         */
+        public final int mIndex;
+        /**
+         * Name of the generated constant holding {@link #mIndex}
+         */
+        public final String mIndexName;
+        /**
+         * The static field holding updater of this field's type, null unless the field is merged by {@link #FLAG_MERGE_NESTED}
+         */
+        public FieldSpec mNestedUpdater;
+        /**
+         * How new value is merged into old value, one of sMERGE_* constants
+         */
+        public int mMergeKind = sMERGE_NONE;
+        /**
+         * Index of this field in the patch array of its kind, see {@link #patchKind()}
+         */
+        public int mPatchSlot;
+        /**
+         * How this field is encoded by writeDelta, one of sCODEC_* constants
+         */
+        public int mCodec = sCODEC_NONE;
+        /**
+         * The primitive type written by writeDelta if this field is primitive or boxed primitive, otherwise null
+         */
+        public TypeName mWireType;
+        /**
+         * Erasure of the type of this field, see {@link #rawType(TypeMirror)}
+         */
+        public TypeName mRawType;
 
-        public Field(FieldSpec fieldSpec, boolean omitNull) {
+        public Field(FieldSpec fieldSpec, boolean omitNull, int flags, int index, String indexName) {
             mFieldSpec = fieldSpec;
             mIsOmitNull = omitNull;
+            mFlags = flags;
+            mIndex = index;
+            mIndexName = indexName;
         }
 
         /**
          * Wrap a declared field and create a new instance of type {@link Field}
          *
          * @param field      the field which can be updated
+         * @param fieldType  type of the field as a member of the entity
          * @param isOmitNull omit null flag
+         * @param flags      bitwise or of FLAG_* constants
+         * @param index      index of the field
+         * @param indexName  name of the index constant
          * @return instance of {@link Field}
          */
-        public static Field get(VariableElement field, boolean isOmitNull) {
+        public static Field get(VariableElement field, TypeMirror fieldType, boolean isOmitNull, int flags, int index, String indexName) {
             return new Field(
                     FieldSpec.builder(
-                            TypeName.get(field.asType()),
+                            TypeName.get(fieldType),
                             field.getSimpleName().toString()
                     ).build(),
-                    isOmitNull
+                    isOmitNull,
+                    flags,
+                    index,
+                    indexName
             );
         }
 
+        /**
+         * Format of the expression which reads this field, see {@link #readArgs(Object)} for its arguments
+         */
+        public String readFormat() {
+            return "$N.$N";
+        }
+
+        /**
+         * Arguments of {@link #readFormat()}
+         *
+         * @param param name of the entity to read from, {@link ParameterSpec} or {@link CharSequence}
+         */
+        public Object[] readArgs(Object param) {
+            return new Object[]{param, mFieldSpec};
+        }
+
+        /**
+         * Whether the given FLAG_* constant is set on this field
+         */
+        public boolean hasFlag(int flag) {
+            return (mFlags & flag) != 0;
+        }
+
+        /**
+         * Format of the condition which is true if the values of this field in two entities differ,
+         * see {@link #differsArgs(ParameterSpec, ParameterSpec)} for its arguments
+         */
+        public String differsFormat() {
+            final String read = readFormat();
+            if (mMergeKind == sMERGE_ARRAY) {
+                return "!$T.equals(" + read + ", " + read + ")";
+            }
+            if (isComparedByEquals()) {
+                return read + " == null ? " + read + " != null : !" + read + ".equals(" + read + ")";
+            }
+            return read + " != " + read;
+        }
+
+        /**
+         * Arguments of {@link #differsFormat()}
+         */
+        public Object[] differsArgs(ParameterSpec oldParam, ParameterSpec newParam) {
+            final Object[] oldArgs = readArgs(oldParam);
+            final Object[] newArgs = readArgs(newParam);
+            if (mMergeKind == sMERGE_ARRAY) {
+                return flatten(Arrays.class, oldArgs, newArgs);
+            }
+            if (isComparedByEquals()) {
+                return concat(concat(oldArgs, newArgs), concat(oldArgs, newArgs));
+            }
+            return concat(oldArgs, newArgs);
+        }
+
+        /**
+         * Whether values of this field are compared by equals rather than by reference,
+         * which is also the case for collections and maps merged in place
+         */
+        private boolean isComparedByEquals() {
+            if (mFieldSpec.type.isPrimitive()) {
+                return false;
+            }
+            return hasFlag(FLAG_COMPARE_BY_EQUALS) || mMergeKind == sMERGE_COLLECTION
+                    || mMergeKind == sMERGE_LIST_BY_KEY || mMergeKind == sMERGE_MAP;
+        }
+
+        /**
+         * Component type of the patch array which holds new value of this field,
+         * the primitive type itself or {@link Object} for fields of reference types
+         */
+        public TypeName patchKind() {
+            return mFieldSpec.type.isPrimitive() ? mFieldSpec.type : TypeName.OBJECT;
+        }
+
+        /**
+         * Add the statement which writes a value to this field of target
+         *
+         * @param builder     the code block to add to
+         * @param target      the entity to write to
+         * @param valueFormat format of the value expression
+         * @param valueArgs   arguments of valueFormat
+         */
+        public void addWriteStatement(CodeBlock.Builder builder, ParameterSpec target, String valueFormat, Object... valueArgs) {
+            builder.addStatement("$N.$N = " + valueFormat, flatten(target, mFieldSpec, valueArgs));
+        }
+
+        /**
+         * Create the statement of method writeDelta, which encodes new value of this field if it differs
+         *
+         * @param oldParam the parameter declaration used to reference fields
+         * @param newParam the parameter declaration used to reference fields
+         * @param maskName name of the local change mask
+         * @param wideMask whether the change mask is a long[] or a long
+         */
+        public CodeBlock createWriteDeltaStatement(ParameterSpec oldParam, ParameterSpec newParam, String maskName, boolean wideMask) {
+            final boolean checkNull = !mFieldSpec.type.isPrimitive() && mIsOmitNull;
+            final String read = readFormat();
+            final Object[] newArgs = readArgs(newParam);
+            final CodeBlock.Builder builder = CodeBlock.builder();
+            if (checkNull) {
+                builder.beginControlFlow("if (" + read + " != null && (" + differsFormat() + "))",
+                        concat(newArgs, differsArgs(oldParam, newParam)));
+            } else {
+                builder.beginControlFlow("if (" + differsFormat() + ")", differsArgs(oldParam, newParam));
+            }
+            switch (mCodec) {
+                case sCODEC_STRING:
+                    builder.addStatement("writeString($N, " + read + ")", flatten(sBUFFER, newArgs));
+                    break;
+                case sCODEC_ENUM:
+                    builder.addStatement("writeVarLong($N, " + read + " == null ? 0L : " + read + ".ordinal() + 1L)",
+                            flatten(sBUFFER, newArgs, newArgs));
+                    break;
+                case sCODEC_BOXED:
+                    builder.beginControlFlow("if (" + read + " == null)", newArgs)
+                            .addStatement("$N.put((byte) 0)", sBUFFER)
+                            .nextControlFlow("else")
+                            .addStatement("$N.put((byte) 1)", sBUFFER);
+                    addEncodeStatement(builder, read, newArgs);
+                    builder.endControlFlow();
+                    break;
+                default:
+                    addEncodeStatement(builder, read, newArgs);
+                    break;
+            }
+            addMaskStatement(builder, maskName, wideMask);
+            return builder.endControlFlow().build();
+        }
+
+        /**
+         * Add the statement which writes a primitive value of {@link #mWireType} to the buffer
+         */
+        private void addEncodeStatement(CodeBlock.Builder builder, String valueFormat, Object[] valueArgs) {
+            final String format;
+            if (TypeName.BOOLEAN.equals(mWireType)) {
+                format = "$N.put((byte) (" + valueFormat + " ? 1 : 0))";
+            } else if (TypeName.BYTE.equals(mWireType)) {
+                format = "$N.put(" + valueFormat + ")";
+            } else if (TypeName.INT.equals(mWireType) || TypeName.LONG.equals(mWireType)) {
+                builder.addStatement("writeVarLong($N, " + valueFormat + ")", flatten(sBUFFER, valueArgs));
+                return;
+            } else {
+                format = "$N.put" + capitalizedWireType() + "(" + valueFormat + ")";
+            }
+            builder.addStatement(format, flatten(sBUFFER, valueArgs));
+        }
+
+        /**
+         * Name of the wire type used in ByteBuffer methods, e.g. Short for short
+         */
+        private String capitalizedWireType() {
+            final String name = mWireType.toString();
+            return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+
+        /**
+         * Format of the expression which reads the value of this field from a token reader,
+         * null if this field is not read from tokens. See {@link #tokenArgs(Object)} for its arguments
+         */
+        public String tokenFormat() {
+            switch (mCodec) {
+                case sCODEC_STRING:
+                    return "$N.nextString()";
+                case sCODEC_ENUM:
+                    return "readEnum($N, $T.class)";
+                case sCODEC_PRIMITIVE:
+                case sCODEC_BOXED:
+                    if (TypeName.BOOLEAN.equals(mWireType)) {
+                        return "$N.nextBoolean()";
+                    } else if (TypeName.INT.equals(mWireType) || TypeName.LONG.equals(mWireType) || TypeName.DOUBLE.equals(mWireType)) {
+                        return "$N.next" + capitalizedWireType() + "()";
+                    } else if (TypeName.FLOAT.equals(mWireType)) {
+                        return "(float) $N.nextDouble()";
+                    } else if (TypeName.CHAR.equals(mWireType)) {
+                        return "readChar($N)";
+                    }
+                    return "(" + mWireType + ") $N.nextInt()";
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Arguments of {@link #tokenFormat()}
+         */
+        public Object[] tokenArgs(Object reader) {
+            if (mCodec == sCODEC_ENUM) {
+                return new Object[]{reader, mFieldSpec.type};
+            }
+            return new Object[]{reader};
+        }
+
+        /**
+         * Whether the value read from tokens may be null though the token is not, which is the case of enums
+         * and chars, see {@link UpdaterGenerator#addTokenHelpers(TypeSpec.Builder)}
+         */
+        public boolean isTokenNullable() {
+            return mCodec == sCODEC_ENUM || TypeName.CHAR.equals(mWireType);
+        }
+
+        /**
+         * Format of the expression which decodes a value of this field from the buffer,
+         * see {@link #decodeArgs()} for its arguments
+         */
+        public String decodeFormat() {
+            final String primitive;
+            if (TypeName.BOOLEAN.equals(mWireType)) {
+                primitive = "$N.get() != 0";
+            } else if (TypeName.BYTE.equals(mWireType)) {
+                primitive = "$N.get()";
+            } else if (TypeName.INT.equals(mWireType)) {
+                primitive = "(int) readVarLong($N)";
+            } else if (TypeName.LONG.equals(mWireType)) {
+                primitive = "readVarLong($N)";
+            } else if (mWireType != null) {
+                primitive = "$N.get" + capitalizedWireType() + "()";
+            } else {
+                primitive = null;
+            }
+            switch (mCodec) {
+                case sCODEC_STRING:
+                    return "readString($N)";
+                case sCODEC_ENUM:
+                    return "readEnum($N, $T.values())";
+                case sCODEC_BOXED:
+                    return "$N.get() == 0 ? null : ($T) (" + primitive + ")";
+                default:
+                    return primitive;
+            }
+        }
+
+        /**
+         * Arguments of {@link #decodeFormat()}
+         */
+        public Object[] decodeArgs() {
+            switch (mCodec) {
+                case sCODEC_ENUM:
+                    return new Object[]{sBUFFER, mFieldSpec.type};
+                case sCODEC_BOXED:
+                    return new Object[]{sBUFFER, mFieldSpec.type, sBUFFER};
+                default:
+                    return new Object[]{sBUFFER};
+            }
+        }
+
+        /**
+         * Create the statement of method diff, which records new value of this field in the patch if it differs
+         *
+         * @param oldParam the parameter declaration used to reference fields
+         * @param newParam the parameter declaration used to reference fields
+         * @param maskName expression of the patch's change mask
+         * @param wideMask whether the change mask is a long[] or a long
+         */
+        public CodeBlock createDiffStatement(ParameterSpec oldParam, ParameterSpec newParam, String maskName, boolean wideMask) {
+            final boolean checkNull = !mFieldSpec.type.isPrimitive() && mIsOmitNull;
+            final CodeBlock.Builder builder = CodeBlock.builder();
+            if (checkNull) {
+                builder.beginControlFlow("if (" + readFormat() + " != null && (" + differsFormat() + "))",
+                        concat(readArgs(newParam), differsArgs(oldParam, newParam)));
+            } else {
+                builder.beginControlFlow("if (" + differsFormat() + ")", differsArgs(oldParam, newParam));
+            }
+            builder.addStatement("patch.$N[$L] = " + readFormat(), flatten(patchArrayName(patchKind()), mPatchSlot, readArgs(newParam)));
+            addMaskStatement(builder, maskName, wideMask);
+            return builder.endControlFlow().build();
+        }
+
+        /**
+         * Create the statement of the journaled update, which records old value of this field in the journal
+         * before it is overwritten. Fields merged in place are never journaled.
+         *
+         * @param journal  the journal, which is a patch
+         * @param wideMask whether the mask of journal is a long[] or a long
+         */
+        public CodeBlock createJournaledUpdateStatement(ParameterSpec oldParam, ParameterSpec newParam, ParameterSpec journal, boolean wideMask) {
+            final String maskName = journal.name + ".mask";
+            final CodeBlock.Builder builder = CodeBlock.builder();
+            if (!mFieldSpec.type.isPrimitive() && mIsOmitNull) {
+                builder.beginControlFlow("if (" + readFormat() + " != null && (" + differsFormat() + "))",
+                        concat(readArgs(newParam), differsArgs(oldParam, newParam)));
+            } else {
+                builder.beginControlFlow("if (" + differsFormat() + ")", differsArgs(oldParam, newParam));
+            }
+            builder.addStatement("$N.$N[$L] = " + readFormat(), flatten(journal, patchArrayName(patchKind()), mPatchSlot, readArgs(oldParam)));
+            addMaskStatement(builder, maskName, wideMask);
+            addAssignStatement(builder, oldParam, newParam);
+            return builder.endControlFlow().build();
+        }
+
+        /**
+         * Add the statement which writes the value of this field from newParam to oldParam
+         */
+        public void addAssignStatement(CodeBlock.Builder builder, ParameterSpec oldParam, ParameterSpec newParam) {
+            builder.addStatement("$N.$N = $N.$N", oldParam, mFieldSpec, newParam, mFieldSpec);
+        }
+
         /**
          * Create update statement for wrapped field
          *
@@ -292,17 +2945,164 @@ public class UpdaterGenerator {
          * @return generated code block for updating the wrapped field
          */
         public CodeBlock createUpdateStatement(ParameterSpec oldParam, ParameterSpec newParam) {
+            return createUpdateStatement(oldParam, newParam, null, false);
+        }
+
+        /**
+         * Create update statement for wrapped field, which also sets the bit of this field in a change mask
+         * if old value differs from new value.
+         * If {@link #FLAG_SKIP_UNCHANGED} is set, the field is written only if its value differs.
+         *
+         * @param oldParam the parameter declaration used to reference fields in update statemens
+         * @param newParam the parameter declaration used to reference fields in update statemens
+         * @param maskName name of the local change mask, null if changes are not tracked
+         * @param wideMask whether the change mask is a long[] or a long
+         * @return generated code block for updating the wrapped field
+         */
+        public CodeBlock createUpdateStatement(ParameterSpec oldParam, ParameterSpec newParam, String maskName, boolean wideMask) {
+            if (mMergeKind != sMERGE_NONE) {
+                return createMergeStatement(oldParam, newParam, maskName, wideMask);
+            }
             final boolean checkNull = !mFieldSpec.type.isPrimitive() && mIsOmitNull;
             CodeBlock.Builder builder = CodeBlock.builder();
             if (checkNull) {
-                builder.beginControlFlow("if ($N.$N != null)", newParam, mFieldSpec);
+                builder.beginControlFlow("if (" + readFormat() + " != null)", readArgs(newParam));
+            }
+            if (hasFlag(FLAG_SKIP_UNCHANGED)) {
+                builder.beginControlFlow("if (" + differsFormat() + ")", differsArgs(oldParam, newParam));
+                addAssignStatement(builder, oldParam, newParam);
+                addMaskStatement(builder, maskName, wideMask);
+                builder.endControlFlow();
+            } else {
+                if (maskName != null) {
+                    builder.beginControlFlow("if (" + differsFormat() + ")", differsArgs(oldParam, newParam));
+                    addMaskStatement(builder, maskName, wideMask);
+                    builder.endControlFlow();
+                }
+                addAssignStatement(builder, oldParam, newParam);
             }
-            builder.addStatement("$N.$N = $N.$N", oldParam, mFieldSpec, newParam, mFieldSpec);
             if (checkNull) {
                 builder.endControlFlow();
             }
             return builder.build();
         }
+
+        /**
+         * Create statement which merges new value of this field into old value according to {@link #mMergeKind},
+         * so the object held by old entity is kept. If old value is null, or is an array of different length,
+         * new value is taken.
+         */
+        CodeBlock createMergeStatement(ParameterSpec oldParam, ParameterSpec newParam, String maskName, boolean wideMask) {
+            final String read = readFormat();
+            final Object[] oldArgs = readArgs(oldParam);
+            final Object[] newArgs = readArgs(newParam);
+            CodeBlock.Builder builder = CodeBlock.builder()
+                    .beginControlFlow("if (" + read + " != null)", newArgs);
+            if (mMergeKind == sMERGE_ARRAY) {
+                builder.beginControlFlow("if (" + read + " == null || " + read + ".length != " + read + ".length)",
+                        flatten(oldArgs, oldArgs, newArgs));
+            } else {
+                builder.beginControlFlow("if (" + read + " == null)", oldArgs);
+            }
+            addAssignStatement(builder, oldParam, newParam);
+            addMaskStatement(builder, maskName, wideMask);
+            builder.nextControlFlow("else if (" + read + " != " + read + ")", flatten(oldArgs, newArgs));
+            switch (mMergeKind) {
+                case sMERGE_NESTED:
+                    if (maskName != null) {
+                        builder.beginControlFlow("if ($N.updateHasChanges(" + read + ", " + read + "))", flatten(mNestedUpdater, oldArgs, newArgs));
+                        addMaskStatement(builder, maskName, wideMask);
+                        builder.endControlFlow();
+                    } else {
+                        builder.addStatement("$N.update(" + read + ", " + read + ")", flatten(mNestedUpdater, oldArgs, newArgs));
+                    }
+                    break;
+                case sMERGE_LIST_BY_KEY:
+                    if (maskName != null) {
+                        builder.addStatement("final $T.MergeResult result = $N.mergeAll(" + read + ", " + read + ")",
+                                flatten(mNestedUpdater.type, mNestedUpdater, oldArgs, newArgs));
+                        builder.beginControlFlow("if (result.updated != 0 || !result.inserted.isEmpty() || !result.removed.isEmpty())");
+                        addMaskStatement(builder, maskName, wideMask);
+                        builder.endControlFlow();
+                    } else {
+                        builder.addStatement("$N.mergeAll(" + read + ", " + read + ")", flatten(mNestedUpdater, oldArgs, newArgs));
+                    }
+                    break;
+                default:
+                    /**
+                     * Content is compared first only if it matters, since comparing costs as much as copying
+                     */
+                    final boolean compare = maskName != null || hasFlag(FLAG_SKIP_UNCHANGED);
+                    if (compare) {
+                        if (mMergeKind == sMERGE_ARRAY) {
+                            builder.beginControlFlow("if (!$T.equals(" + read + ", " + read + "))", flatten(Arrays.class, oldArgs, newArgs));
+                        } else {
+                            builder.beginControlFlow("if (!" + read + ".equals(" + read + "))", flatten(oldArgs, newArgs));
+                        }
+                    }
+                    if (mMergeKind == sMERGE_ARRAY) {
+                        builder.addStatement("$T.arraycopy(" + read + ", 0, " + read + ", 0, " + read + ".length)",
+                                flatten(System.class, newArgs, oldArgs, newArgs));
+                    } else if (mMergeKind == sMERGE_COLLECTION) {
+                        builder.addStatement(read + ".clear()", oldArgs)
+                                .addStatement(read + ".addAll(" + read + ")", flatten(oldArgs, newArgs));
+                    } else {
+                        builder.addStatement(read + ".putAll(" + read + ")", flatten(oldArgs, newArgs))
+                                .addStatement(read + ".keySet().retainAll(" + read + ".keySet())", flatten(oldArgs, newArgs));
+                    }
+                    if (compare) {
+                        addMaskStatement(builder, maskName, wideMask);
+                        builder.endControlFlow();
+                    }
+                    break;
+            }
+            builder.endControlFlow();
+            if (!mIsOmitNull) {
+                builder.nextControlFlow("else if (" + read + " != null)", oldArgs);
+                addAssignStatement(builder, oldParam, newParam);
+                addMaskStatement(builder, maskName, wideMask);
+            }
+            return builder.endControlFlow().build();
+        }
+
+        /**
+         * Add the statement which sets the bit of this field in the change mask, nothing is added if maskName is null
+         */
+        void addMaskStatement(CodeBlock.Builder builder, String maskName, boolean wideMask) {
+            if (maskName == null) {
+                return;
+            }
+            if (wideMask) {
+                builder.addStatement("$N[$N >>> 6] |= 1L << $N", maskName, mIndexName, mIndexName);
+            } else {
+                builder.addStatement("$N |= 1L << $N", maskName, mIndexName);
+            }
+        }
+
+        /**
+         * Flatten format arguments, elements of Object[] parts are inlined
+         */
+        static Object[] flatten(Object... parts) {
+            final List<Object> result = new ArrayList<>();
+            for (final Object part : parts) {
+                if (part instanceof Object[]) {
+                    result.addAll(Arrays.asList((Object[]) part));
+                } else {
+                    result.add(part);
+                }
+            }
+            return result.toArray();
+        }
+
+        /**
+         * Concatenate format arguments
+         */
+        static Object[] concat(Object[] first, Object[] second) {
+            final Object[] result = new Object[first.length + second.length];
+            System.arraycopy(first, 0, result, 0, first.length);
+            System.arraycopy(second, 0, result, first.length, second.length);
+            return result;
+        }
     }
 
     /**
@@ -319,8 +3119,8 @@ public class UpdaterGenerator {
          */
         public final MethodSpec mSetterSpec;
 
-        public Property(FieldSpec fieldSpec, MethodSpec getter, MethodSpec setter, boolean omitNull) {
-            super(fieldSpec, omitNull);
+        public Property(FieldSpec fieldSpec, MethodSpec getter, MethodSpec setter, boolean omitNull, int flags, int index, String indexName) {
+            super(fieldSpec, omitNull, flags, index, indexName);
             mGetterSpec = getter;
             mSetterSpec = setter;
         }
@@ -329,40 +3129,59 @@ public class UpdaterGenerator {
          * Wrap a declared field and create a new instance of type {@link Field}
          *
          * @param field      the field which can be updated
+         * @param fieldType  type of the field as a member of the entity
          * @param getter     getter method definition
          * @param setter     setter method definition
          * @param isOmitNull omit null flag
+         * @param flags      bitwise or of FLAG_* constants
+         * @param index      index of the field
+         * @param indexName  name of the index constant
          * @return instance of {@link Field}
          */
-        public static Property get(VariableElement field, ExecutableElement getter, ExecutableElement setter, boolean isOmitNull) {
+        public static Property get(VariableElement field, TypeMirror fieldType, ExecutableElement getter, ExecutableElement setter,
+                                   boolean isOmitNull, int flags, int index, String indexName) {
             return new Property(
                     FieldSpec.builder(
-                            TypeName.get(field.asType()),
+                            TypeName.get(fieldType),
                             field.getSimpleName().toString()
                     ).build(),
                     MethodSpec.overriding(getter).build(),
                     MethodSpec.overriding(setter).build(),
-                    isOmitNull
+                    isOmitNull,
+                    flags,
+                    index,
+                    indexName
             );
         }
 
+        /**
+         * {@inheritDoc}
+         * <br/>
+         * The value is read by calling getter method
+         */
+        @Override
+        public String readFormat() {
+            return "$N.$N()";
+        }
+
+        @Override
+        public Object[] readArgs(Object param) {
+            return new Object[]{param, mGetterSpec};
+        }
+
         /**
          * {@inheritDoc}
          * <br/>
          * The get/set operations are performed by calling getter/setter method
          */
         @Override
-        public CodeBlock createUpdateStatement(ParameterSpec oldParam, ParameterSpec newParam) {
-            final boolean checkNull = !mFieldSpec.type.isPrimitive() && mIsOmitNull;
-            CodeBlock.Builder builder = CodeBlock.builder();
-            if (checkNull) {
-                builder.beginControlFlow("if (null != $N.$N())", newParam, mGetterSpec);
-            }
+        public void addAssignStatement(CodeBlock.Builder builder, ParameterSpec oldParam, ParameterSpec newParam) {
             builder.addStatement("$N.$N($N.$N())", oldParam, mSetterSpec, newParam, mGetterSpec);
-            if (checkNull) {
-                builder.endControlFlow();
-            }
-            return builder.build();
+        }
+
+        @Override
+        public void addWriteStatement(CodeBlock.Builder builder, ParameterSpec target, String valueFormat, Object... valueArgs) {
+            builder.addStatement("$N.$N(" + valueFormat + ")", flatten(target, mSetterSpec, valueArgs));
         }
     }
 }
@@ -1,10 +1,16 @@
 package cn.campusapp.updatercompiler.updater;
 
 import com.google.auto.service.AutoService;
+import com.squareup.javapoet.ClassName;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
@@ -14,28 +20,146 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
 
 import cn.campusapp.updater.Skip;
 import cn.campusapp.updater.Updatable;
+import cn.campusapp.updater.UpdaterManager;
+import cn.campusapp.updatercompiler.manager.ManagerGenerator;
+import cn.campusapp.updatercompiler.manager.ManagerProcessor;
 
 /**
  * A processor to generate field updater for classes annotated with {@link Updatable}.
+ * Each updater only depends on its entity class, so the processor is isolating for Gradle
+ * incremental annotation processing.
+ * <p/>
+ * If option {@link ManagerProcessor#OPTION_CONSOLIDATED} is given, no updater class is written. The static update
+ * methods of all entity types are collected into the manager, which this processor writes in the round of the
+ * entity types, so it is aggregating in this mode. It is registered as dynamic, and tells Gradle which it is through
+ * {@link #getSupportedOptions()}.
  * Created by chen on 16/1/6.
  */
 @SuppressWarnings("UnusedDeclaration")
 @AutoService(Processor.class)
 public class UpdaterProcessor extends AbstractProcessor {
+    /**
+     * Annotation on a type or field, fields are written only if their values changed
+     */
+    private static final String sSKIP_UNCHANGED = "cn.campusapp.updater.SkipUnchanged";
+    /**
+     * Annotation on a type or field, non-primitive values are compared by equals instead of ==
+     */
+    private static final String sCOMPARE_BY_EQUALS = "cn.campusapp.updater.CompareByEquals";
+    /**
+     * Annotation on a type or field, values of updatable types are merged in place instead of being replaced
+     */
+    private static final String sMERGE_NESTED = "cn.campusapp.updater.MergeNested";
+    /**
+     * Annotation on a type or field, arrays, collections and maps are merged into old container instead of being replaced
+     */
+    private static final String sMERGE_IN_PLACE = "cn.campusapp.updater.MergeInPlace";
+    /**
+     * Annotation on the field which identifies an entity, such as its id
+     */
+    static final String sKEY = "cn.campusapp.updater.Key";
+    /**
+     * Annotation on a volatile int or long field, which turns on the seqlock mode of generated updater
+     */
+    private static final String sSEQUENCE = "cn.campusapp.updater.Sequence";
+    /**
+     * Annotation on a monotonic integral field such as a version or timestamp, updates which do not increase it are dropped
+     */
+    private static final String sVERSION = "cn.campusapp.updater.Version";
+    /**
+     * Gson's annotation giving the JSON name of a field, read by streamed updaters
+     */
+    private static final String sSERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    /**
+     * Annotation on a type, listeners can be registered on its updater to be notified of changed fields
+     */
+    private static final String sOBSERVED = "cn.campusapp.updater.Observed";
+    /**
+     * Annotation on a type, whose updater gets update overloads taking a field mask
+     */
+    private static final String sMASKED = "cn.campusapp.updater.Masked";
+    /**
+     * Annotation on a type, whose updater gets methods writeDelta and readDelta
+     */
+    private static final String sDELTA_ENCODED = "cn.campusapp.updater.DeltaEncoded";
+    /**
+     * Annotation on a type, whose updater gets methods diff and apply
+     */
+    private static final String sDIFFED = "cn.campusapp.updater.Diffed";
+    /**
+     * Annotation on a type, whose updater gets method readTokens
+     */
+    private static final String sSTREAMED = "cn.campusapp.updater.Streamed";
+    /**
+     * The interface through which streamed updaters read JSON, shipped by the runtime artifact
+     */
+    private static final ClassName sTOKEN_READER = ClassName.get(UpdaterManager.class.getPackage().getName(), "TokenReader");
+    /**
+     * Annotation on a type, its updater can record overwritten values in a journal and roll them back
+     */
+    private static final String sJOURNALED = "cn.campusapp.updater.Journaled";
+    /**
+     * Processor option, qualified name of the class whose static method
+     * {@code onUpdate(Class<?> type, int changedFields, long elapsedNanos)} receives metrics of every update.
+     * Without this option no metrics code is generated.
+     */
+    public static final String OPTION_METRICS = "updaterMetrics";
+    /**
+     * Processor option, if "true" the duration of updates is measured for the metrics sink
+     */
+    public static final String OPTION_METRICS_TIMING = "updaterMetricsTiming";
+    /**
+     * Options through which a dynamic processor reports its category to Gradle
+     */
+    private static final String sGRADLE_ISOLATING = "org.gradle.annotation.processing.isolating";
+    private static final String sGRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
+    /**
+     * Members of types and their superclasses, see {@link #getMembers(TypeElement)}
+     */
+    private final Map<TypeElement, Members> mMembersCache = new HashMap<>();
+    /**
+     * The metrics sink, see {@link #getMetricsSink()}
+     */
+    private ClassName mMetricsSink;
+    private boolean mIsMetricsSinkResolved;
+    /**
+     * The generator of the manager in consolidated mode, null until an entity type is processed in that mode
+     */
+    private ManagerGenerator mRegistry;
+    private boolean mIsRegistryWritten;
+    private boolean mIsFieldAccessorMissing;
 
     @Override
     public Set<String> getSupportedAnnotationTypes() {
         return Collections.singleton(Updatable.class.getCanonicalName());
     }
 
+    @Override
+    public Set<String> getSupportedOptions() {
+        return new HashSet<>(Arrays.asList(OPTION_METRICS, OPTION_METRICS_TIMING, ManagerProcessor.OPTION_ACCESSORS,
+                ManagerProcessor.OPTION_CONSOLIDATED, isConsolidated() ? sGRADLE_AGGREGATING : sGRADLE_ISOLATING));
+    }
+
+    /**
+     * Whether option {@link ManagerProcessor#OPTION_CONSOLIDATED} is given, false before the processor is initialized
+     */
+    private boolean isConsolidated() {
+        return processingEnv != null && Boolean.parseBoolean(processingEnv.getOptions().get(ManagerProcessor.OPTION_CONSOLIDATED));
+    }
+
     @Override
     public SourceVersion getSupportedSourceVersion() {
         return SourceVersion.latestSupported();
@@ -52,6 +176,15 @@ public class UpdaterProcessor extends AbstractProcessor {
          * Since we only handle {@link Updatable}, we can just ignore the given set of annotations
          */
         Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(Updatable.class);
+        /**
+         * Elements of previous rounds are not reused
+         */
+        mMembersCache.clear();
+        final ClassName metricsSink = getMetricsSink();
+        final boolean metricsTimed = Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_METRICS_TIMING));
+        final boolean accessors = Boolean.parseBoolean(processingEnv.getOptions().get(ManagerProcessor.OPTION_ACCESSORS))
+                && !elements.isEmpty() && isFieldAccessorFound();
+        final boolean consolidated = isConsolidated();
 
         /**
          * Filter out type elements (which are class definitions)
@@ -60,26 +193,65 @@ public class UpdaterProcessor extends AbstractProcessor {
 
         for (final TypeElement typeElement : annotatedTypes) {
             /**
-             * Find the package of typeElement
+             * Find the package of typeElement, or in consolidated mode the package of the manager, from which
+             * the update method accesses entities
              */
-            final PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(typeElement);
+            final PackageElement packageElement = consolidated
+                    ? processingEnv.getElementUtils().getPackageElement(UpdaterManager.class.getPackage().getName())
+                    : processingEnv.getElementUtils().getPackageOf(typeElement);
+            if (consolidated && !checkConsolidated(typeElement)) {
+                continue;
+            }
 
             /**
-             * List all declared elements in this type element
+             * Collect field declarations of this type and its superclasses, and don't forget the instance methods
+             * among which we may search for getter/setter
              */
-            List<? extends Element> enclosedElements = typeElement.getEnclosedElements();
+            final List<VariableElement> fields = new ArrayList<>();
+            final List<ExecutableElement> methods = new ArrayList<>();
+            collectMembers(typeElement, packageElement, fields, methods);
             /**
-             * Filter out instance field declarations
+             * Index methods by name once, so looking up getter/setter of each field takes constant time
              */
-            final List<VariableElement> fields = ElementFilter.fieldsIn(enclosedElements);
-            /**
-             * And don't forget the instance methods among which we may search for getter/setter
-             */
-            final List<ExecutableElement> methods = ElementFilter.methodsIn(enclosedElements);
+            final Map<String, ExecutableElement> methodIndex = ElementUtil.indexMethods(methods);
+            final DeclaredType declaredType = (DeclaredType) typeElement.asType();
             /**
              * Instantiate {@link UpdaterGenerator}
              */
             final UpdaterGenerator updaterGenerator = new UpdaterGenerator(packageElement, typeElement);
+            final boolean journaled = !consolidated && ElementUtil.isAnnotationPresent(typeElement, sJOURNALED);
+            if (consolidated) {
+                updaterGenerator.setConsolidated();
+            } else {
+                if (metricsSink != null) {
+                    updaterGenerator.setMetricsSink(metricsSink, metricsTimed);
+                }
+                if (ElementUtil.isAnnotationPresent(typeElement, sOBSERVED)) {
+                    updaterGenerator.setObserved();
+                }
+                if (journaled) {
+                    updaterGenerator.setJournaled();
+                }
+                if (ElementUtil.isAnnotationPresent(typeElement, sDIFFED)) {
+                    updaterGenerator.setDiffed();
+                }
+                if (ElementUtil.isAnnotationPresent(typeElement, sDELTA_ENCODED)) {
+                    updaterGenerator.setDeltaEncoded();
+                }
+                if (ElementUtil.isAnnotationPresent(typeElement, sMASKED)) {
+                    updaterGenerator.setMasked();
+                }
+                if (accessors) {
+                    updaterGenerator.setFieldAccessor(ManagerProcessor.FIELD_ACCESSOR);
+                }
+                if (ElementUtil.isAnnotationPresent(typeElement, sSTREAMED)) {
+                    setStreamed(updaterGenerator, typeElement);
+                }
+            }
+            /**
+             * Flags declared on the type apply to all of its fields
+             */
+            final int typeFlags = getFlags(typeElement);
 
             /**
              * Let's traverse instance field declarations
@@ -92,10 +264,41 @@ public class UpdaterProcessor extends AbstractProcessor {
                     continue;
                 }
                 final Set<Modifier> fieldModifiers = field.getModifiers();
+                /**
+                 * The sequence field is maintained by updater, it is never copied
+                 */
+                if (ElementUtil.isAnnotationPresent(field, sSEQUENCE)) {
+                    setSequence(updaterGenerator, field, packageElement);
+                    continue;
+                }
+                /**
+                 * The key field is only read, so it can be final
+                 */
+                if (ElementUtil.isAnnotationPresent(field, sKEY)) {
+                    setKey(updaterGenerator, field, packageElement, methodIndex);
+                }
+                /**
+                 * The version field is compared before any field is written, and copied like other fields
+                 */
+                if (ElementUtil.isAnnotationPresent(field, sVERSION)) {
+                    setVersion(updaterGenerator, field, packageElement, methodIndex);
+                }
                 /**
                  * If this field is not annotated with android.support.annotation.Nullable, it will not receive a null value
                  */
                 final boolean omitNull = !ElementUtil.isAnnotationPresent(field, "android.support.annotation.Nullable");
+                final int flags = typeFlags | getFlags(field);
+                /**
+                 * Type of the field as a member of this type, so type variables of generic superclasses are resolved
+                 */
+                final TypeMirror fieldType = processingEnv.getTypeUtils().asMemberOf(declaredType, field);
+                /**
+                 * Streamed fields are named in JSON by Gson's SerializedName if present, otherwise by field name
+                 */
+                final Object serializedName = ElementUtil.getAnnotationValue(field, sSERIALIZED_NAME);
+                if (serializedName instanceof String) {
+                    updaterGenerator.setSerializedName(field, (String) serializedName);
+                }
 
                 ExecutableElement[] getterSetter = new ExecutableElement[2];
                 /**
@@ -103,21 +306,44 @@ public class UpdaterProcessor extends AbstractProcessor {
                  */
                 if (!fieldModifiers.contains(Modifier.FINAL) && !fieldModifiers.contains(Modifier.STATIC)) {
                     /**
-                     * If this field is non-protected and non-private, which means 'public' or 'package default', it is updatable
+                     * If this field can be accessed from the package of updater, it is updatable
                      */
-                    if (!fieldModifiers.contains(Modifier.PROTECTED) && !fieldModifiers.contains(Modifier.PRIVATE)) {
-                        updaterGenerator.addField(field, omitNull);
+                    if (isFieldAccessible(field, packageElement)) {
+                        updaterGenerator.addField(field, fieldType, omitNull, flags);
                     }
                     /**
                      * If both getter and setter of this field are declared, use its getter/setter for updating
                      */
-                    else if (ElementUtil.findGetterSetter(field, methods, getterSetter)) {
-                        updaterGenerator.addProperty(field, getterSetter[0], getterSetter[1], omitNull);
+                    else if (ElementUtil.findGetterSetter(field, methodIndex, getterSetter)) {
+                        updaterGenerator.addProperty(field, fieldType, getterSetter[0], getterSetter[1], omitNull, flags);
+                    }
+                    /**
+                     * A journal records previous values by reference, which cannot undo changes made in place
+                     */
+                    if (journaled && updaterGenerator.isMergedInPlace(field)) {
+                        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                "Fields of a journaled type cannot be merged in place", field);
                     }
+                }
+            }
 
+            /**
+             * In consolidated mode only the update method is generated, and it is put in the manager
+             */
+            if (consolidated) {
+                if (mRegistry == null) {
+                    mRegistry = ManagerProcessor.createGenerator(processingEnv);
+                    warnConsolidatedOptions(metricsSink != null, accessors);
                 }
+                mRegistry.putConsolidated(typeElement, updaterGenerator.generateConsolidatedUpdateMethod("update"));
+                continue;
             }
 
+            /**
+             * Final fields are not updated in place, immutable entities are merged by creating new instances instead
+             */
+            setMergeFactory(updaterGenerator, typeElement, packageElement, methodIndex, typeFlags);
+
             try {
                 /**
                  * Generate a new java source file
@@ -127,9 +353,419 @@ public class UpdaterProcessor extends AbstractProcessor {
                 processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate updater");
             }
         }
+        if (mRegistry != null && !mIsRegistryWritten) {
+            try {
+                mRegistry.writeToSource(processingEnv);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate updater manager" + e.toString());
+            }
+            mIsRegistryWritten = true;
+        }
         /**
          * Since {@link Updatable} is only claimed by this processor, return true
          */
         return true;
     }
+
+    /**
+     * Check whether an entity type can be updated by the manager in consolidated mode, reporting why not otherwise.
+     * The manager is in another package, so the type must be public, and instances of inner classes have no updater.
+     * Types found after the manager was written are reported as errors.
+     *
+     * @return whether the update method of the type can be put in the manager
+     */
+    private boolean checkConsolidated(TypeElement typeElement) {
+        if (mIsRegistryWritten) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Updatable type found after updater manager was written", typeElement);
+            return false;
+        }
+        if (typeElement.getNestingKind() != NestingKind.TOP_LEVEL && !typeElement.getModifiers().contains(Modifier.STATIC)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Inner class has no updater in consolidated mode", typeElement);
+            return false;
+        }
+        for (Element element = typeElement; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Updatable type must be public in consolidated mode", typeElement);
+                return false;
+            }
+        }
+        for (final String annotation : Arrays.asList(sOBSERVED, sJOURNALED, sSTREAMED, sDIFFED, sDELTA_ENCODED, sMASKED)) {
+            if (ElementUtil.isAnnotationPresent(typeElement, annotation)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "@" + annotation + " is ignored in consolidated mode", typeElement);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Warn about options which have no effect in consolidated mode, since there is no updater class to carry them
+     */
+    private void warnConsolidatedOptions(boolean metrics, boolean accessors) {
+        if (metrics) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Option " + OPTION_METRICS + " is ignored in consolidated mode");
+        }
+        if (accessors) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Option " + ManagerProcessor.OPTION_ACCESSORS + " is ignored in consolidated mode");
+        }
+    }
+
+    /**
+     * Find the metrics sink given by option {@link #OPTION_METRICS} once, an error is reported if it is not found
+     *
+     * @return the sink, or null if metrics are off
+     */
+    private ClassName getMetricsSink() {
+        if (mIsMetricsSinkResolved) {
+            return mMetricsSink;
+        }
+        mIsMetricsSinkResolved = true;
+        final String sinkName = processingEnv.getOptions().get(OPTION_METRICS);
+        if (sinkName == null || sinkName.isEmpty()) {
+            return null;
+        }
+        final TypeElement sink = processingEnv.getElementUtils().getTypeElement(sinkName);
+        if (sink == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Metrics sink " + sinkName + " not found");
+            return null;
+        }
+        mMetricsSink = ClassName.get(sink);
+        return mMetricsSink;
+    }
+
+    /**
+     * Collect fields and instance methods of a type and its superclasses up to {@link Object}.
+     * Members are listed from subclass to superclass, so overriding methods are found first.
+     * Fields hidden by a subclass field of the same name and members not accessible from the package of
+     * updater are left out.
+     *
+     * @param typeElement    the type
+     * @param packageElement the package of generated updater
+     * @param fields         out-parameter, collected fields
+     * @param methods        out-parameter, collected methods
+     */
+    private void collectMembers(TypeElement typeElement, PackageElement packageElement,
+                                List<VariableElement> fields, List<ExecutableElement> methods) {
+        final Members members = getMembers(typeElement);
+        fields.addAll(members.mFields);
+        for (final ExecutableElement method : members.mMethods) {
+            if (isAccessible(method, packageElement)) {
+                methods.add(method);
+            }
+        }
+    }
+
+    /**
+     * Get fields and instance methods of a type and its superclasses, regardless of accessibility.
+     * Results are cached for the current round, as types of large models often share superclasses.
+     */
+    private Members getMembers(TypeElement typeElement) {
+        Members members = mMembersCache.get(typeElement);
+        if (members != null) {
+            return members;
+        }
+        members = new Members();
+        final Set<String> fieldNames = new HashSet<>();
+        final List<? extends Element> enclosedElements = typeElement.getEnclosedElements();
+        for (final VariableElement field : ElementFilter.fieldsIn(enclosedElements)) {
+            fieldNames.add(field.getSimpleName().toString());
+            members.mFields.add(field);
+        }
+        for (final ExecutableElement method : ElementFilter.methodsIn(enclosedElements)) {
+            if (!method.getModifiers().contains(Modifier.STATIC)) {
+                members.mMethods.add(method);
+            }
+        }
+
+        final TypeMirror superclass = typeElement.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            final TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+            if (!superElement.getQualifiedName().contentEquals(Object.class.getCanonicalName())) {
+                final Members superMembers = getMembers(superElement);
+                for (final VariableElement field : superMembers.mFields) {
+                    if (fieldNames.add(field.getSimpleName().toString())) {
+                        members.mFields.add(field);
+                    }
+                }
+                members.mMethods.addAll(superMembers.mMethods);
+            }
+        }
+        mMembersCache.put(typeElement, members);
+        return members;
+    }
+
+    /**
+     * Whether a field can be read and written directly from the package of updater.
+     * Protected fields are accessed through getter/setter, as fields of the entity class itself always were.
+     */
+    private static boolean isFieldAccessible(VariableElement field, PackageElement packageElement) {
+        final Set<Modifier> modifiers = field.getModifiers();
+        return !modifiers.contains(Modifier.PROTECTED) && isAccessible(field, packageElement);
+    }
+
+    /**
+     * Whether a member is accessible from the package of updater
+     */
+    private static boolean isAccessible(Element member, PackageElement packageElement) {
+        final Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        return !modifiers.contains(Modifier.PRIVATE) && getPackage(member).equals(packageElement);
+    }
+
+    private static PackageElement getPackage(Element element) {
+        Element enclosing = element;
+        while (!(enclosing instanceof PackageElement)) {
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return (PackageElement) enclosing;
+    }
+
+    /**
+     * Use the field as identity key of generated updater, an error is reported if the field can not be read
+     *
+     * @param generator      the generator of the field's enclosing type
+     * @param field          the key field
+     * @param packageElement the package of generated updater
+     * @param methodIndex    instance methods keyed by name, among which we search for the key's getter
+     */
+    private void setKey(UpdaterGenerator generator, VariableElement field, PackageElement packageElement, Map<String, ExecutableElement> methodIndex) {
+        final Set<Modifier> modifiers = field.getModifiers();
+        if (generator.hasKey()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Only one field can be marked as key", field);
+        } else if (modifiers.contains(Modifier.STATIC)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Key must not be static", field);
+        } else if (isFieldAccessible(field, packageElement)) {
+            generator.setKey(field, null);
+        } else {
+            ExecutableElement[] getterSetter = new ExecutableElement[2];
+            ElementUtil.findGetterSetter(field, methodIndex, getterSetter);
+            if (getterSetter[0] != null) {
+                generator.setKey(field, getterSetter[0]);
+            } else {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Key must be accessible or have a getter", field);
+            }
+        }
+    }
+
+    /**
+     * Find the constructor taking all instance fields declared by an immutable type in declaration order, or a builder
+     * created by static method builder() with a setter for each field, and let the generator use it for method merge.
+     * Nothing happens if the type has no final instance field, a field can not be read, or neither is found.
+     *
+     * @param generator      the generator of the type
+     * @param typeElement    the type
+     * @param packageElement the package of generated updater
+     * @param methodIndex    instance methods of the type and its superclasses keyed by name
+     * @param typeFlags      flags declared on the type
+     */
+    private void setMergeFactory(UpdaterGenerator generator, TypeElement typeElement, PackageElement packageElement,
+                                 Map<String, ExecutableElement> methodIndex, int typeFlags) {
+        if (typeElement.getNestingKind() != NestingKind.TOP_LEVEL && !typeElement.getModifiers().contains(Modifier.STATIC)) {
+            return;
+        }
+        final List<VariableElement> fields = new ArrayList<>();
+        final List<ExecutableElement> getters = new ArrayList<>();
+        boolean hasFinal = false;
+        for (final VariableElement field : ElementFilter.fieldsIn(typeElement.getEnclosedElements())) {
+            final Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.STATIC)) {
+                continue;
+            }
+            hasFinal |= modifiers.contains(Modifier.FINAL);
+            ExecutableElement getter = null;
+            if (!isFieldAccessible(field, packageElement)) {
+                ExecutableElement[] getterSetter = new ExecutableElement[2];
+                ElementUtil.findGetterSetter(field, methodIndex, getterSetter);
+                getter = getterSetter[0];
+                if (getter == null) {
+                    return;
+                }
+            }
+            fields.add(field);
+            getters.add(getter);
+        }
+        if (!hasFinal) {
+            return;
+        }
+
+        final Types types = processingEnv.getTypeUtils();
+        boolean found = false;
+        for (final ExecutableElement constructor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+            final List<? extends VariableElement> parameters = constructor.getParameters();
+            if (!isAccessible(constructor, packageElement) || parameters.size() != fields.size()) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < fields.size() && matches; i++) {
+                matches = types.isSameType(parameters.get(i).asType(), fields.get(i).asType());
+            }
+            if (matches) {
+                generator.setConstructor(constructor);
+                found = true;
+                break;
+            }
+        }
+        for (final ExecutableElement method : ElementFilter.methodsIn(typeElement.getEnclosedElements())) {
+            if (found) {
+                break;
+            }
+            if (!method.getSimpleName().contentEquals("builder") || !method.getParameters().isEmpty()
+                    || !method.getModifiers().contains(Modifier.STATIC) || !isAccessible(method, packageElement)
+                    || method.getReturnType().getKind() != TypeKind.DECLARED) {
+                continue;
+            }
+            final TypeElement builderElement = (TypeElement) ((DeclaredType) method.getReturnType()).asElement();
+            final List<ExecutableElement> builderMethods = new ArrayList<>();
+            ExecutableElement build = null;
+            for (final ExecutableElement builderMethod : ElementFilter.methodsIn(builderElement.getEnclosedElements())) {
+                if (builderMethod.getModifiers().contains(Modifier.STATIC) || !isAccessible(builderMethod, packageElement)) {
+                    continue;
+                }
+                builderMethods.add(builderMethod);
+                if (builderMethod.getSimpleName().contentEquals("build") && builderMethod.getParameters().isEmpty()
+                        && types.isSameType(builderMethod.getReturnType(), typeElement.asType())) {
+                    build = builderMethod;
+                }
+            }
+            final List<ExecutableElement> setters = new ArrayList<>();
+            for (final VariableElement field : fields) {
+                final ExecutableElement setter = ElementUtil.findBuilderSetter(field, builderMethods);
+                if (setter == null) {
+                    break;
+                }
+                setters.add(setter);
+            }
+            if (build != null && setters.size() == fields.size()) {
+                generator.setBuilder(method, setters, build);
+                found = true;
+            }
+        }
+        if (!found) {
+            return;
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            final VariableElement field = fields.get(i);
+            final boolean omitNull = !ElementUtil.isAnnotationPresent(field, "android.support.annotation.Nullable");
+            generator.addImmutableField(field, getters.get(i), omitNull, typeFlags | getFlags(field), field.getAnnotation(Skip.class) != null);
+        }
+    }
+
+    /**
+     * Use the field as sequence counter of generated updater, an error is reported if the field is not
+     * an accessible, non-final, volatile int or long instance field
+     *
+     * @param generator      the generator of the field's enclosing type
+     * @param field          the sequence field
+     * @param packageElement the package of generated updater
+     */
+    private void setSequence(UpdaterGenerator generator, VariableElement field, PackageElement packageElement) {
+        final Set<Modifier> modifiers = field.getModifiers();
+        final TypeKind kind = field.asType().getKind();
+        if (generator.hasSequence()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Only one field can be marked as sequence", field);
+        } else if (kind != TypeKind.INT && kind != TypeKind.LONG) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Sequence must be int or long", field);
+        } else if (!modifiers.contains(Modifier.VOLATILE) || modifiers.contains(Modifier.STATIC)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Sequence must be a volatile instance field", field);
+        } else if (!isFieldAccessible(field, packageElement)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Sequence must be accessible from package of updater", field);
+        } else {
+            generator.setSequence(field);
+        }
+    }
+
+    /**
+     * Let the generator compare versions before updating, reporting an error if the version field is not usable
+     *
+     * @param generator      the generator of the field's enclosing type
+     * @param field          the version field
+     * @param packageElement the package of generated updater
+     * @param methodIndex    instance methods keyed by name, among which we search for the version's getter
+     */
+    private void setVersion(UpdaterGenerator generator, VariableElement field, PackageElement packageElement,
+                            Map<String, ExecutableElement> methodIndex) {
+        final TypeKind kind = field.asType().getKind();
+        if (generator.hasVersion()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Only one field can be marked as version", field);
+        } else if (kind != TypeKind.BYTE && kind != TypeKind.SHORT && kind != TypeKind.INT && kind != TypeKind.LONG) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Version must be byte, short, int or long", field);
+        } else if (field.getModifiers().contains(Modifier.STATIC)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Version must not be static", field);
+        } else if (isFieldAccessible(field, packageElement)) {
+            generator.setVersion(field, null);
+        } else {
+            ExecutableElement[] getterSetter = new ExecutableElement[2];
+            ElementUtil.findGetterSetter(field, methodIndex, getterSetter);
+            if (getterSetter[0] != null) {
+                generator.setVersion(field, getterSetter[0]);
+            } else {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Version must be accessible or have a getter", field);
+            }
+        }
+    }
+
+    /**
+     * Whether the FieldAccessor interface is on the classpath, an error is reported once if it is not
+     */
+    private boolean isFieldAccessorFound() {
+        if (processingEnv.getElementUtils().getTypeElement(ManagerProcessor.FIELD_ACCESSOR.toString()) != null) {
+            return true;
+        }
+        if (!mIsFieldAccessorMissing) {
+            mIsFieldAccessorMissing = true;
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ManagerProcessor.FIELD_ACCESSOR
+                    + " not found, option " + ManagerProcessor.OPTION_ACCESSORS + " needs the pojo-updater-runtime dependency");
+        }
+        return false;
+    }
+
+    /**
+     * Let the generator read JSON tokens into entities of a streamed type, reporting an error if the TokenReader
+     * interface is not on the classpath
+     */
+    private void setStreamed(UpdaterGenerator generator, TypeElement typeElement) {
+        if (processingEnv.getElementUtils().getTypeElement(sTOKEN_READER.toString()) == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    sTOKEN_READER + " not found, streamed types need the pojo-updater-runtime dependency", typeElement);
+        } else {
+            generator.setStreamed(sTOKEN_READER);
+        }
+    }
+
+    /**
+     * Collect generator flags from annotations of a type or field
+     *
+     * @param element the annotated type or field
+     * @return bitwise or of UpdaterGenerator.FLAG_* constants
+     */
+    private static int getFlags(Element element) {
+        int flags = 0;
+        if (ElementUtil.isAnnotationPresent(element, sSKIP_UNCHANGED)) {
+            flags |= UpdaterGenerator.FLAG_SKIP_UNCHANGED;
+        }
+        if (ElementUtil.isAnnotationPresent(element, sCOMPARE_BY_EQUALS)) {
+            flags |= UpdaterGenerator.FLAG_COMPARE_BY_EQUALS;
+        }
+        if (ElementUtil.isAnnotationPresent(element, sMERGE_NESTED)) {
+            flags |= UpdaterGenerator.FLAG_MERGE_NESTED;
+        }
+        if (ElementUtil.isAnnotationPresent(element, sMERGE_IN_PLACE)) {
+            flags |= UpdaterGenerator.FLAG_MERGE_IN_PLACE;
+        }
+        return flags;
+    }
+
+    /**
+     * Fields and instance methods of a type and its superclasses
+     */
+    private static final class Members {
+        final List<VariableElement> mFields = new ArrayList<>();
+        final List<ExecutableElement> mMethods = new ArrayList<>();
+    }
 }
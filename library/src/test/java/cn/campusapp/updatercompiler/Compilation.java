@@ -0,0 +1,146 @@
+package cn.campusapp.updatercompiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import cn.campusapp.updatercompiler.manager.ManagerProcessor;
+import cn.campusapp.updatercompiler.updater.UpdaterProcessor;
+
+/**
+ * Sources compiled in process with the processors of this module, for features turned on by processor options.
+ * Compiled classes are loaded before those of the tests, since both hold cn.campusapp.updater.UpdaterManagerImpl.
+ */
+public final class Compilation implements Closeable {
+    private final File mRoot;
+    private final File mGeneratedDir;
+    private final URLClassLoader mLoader;
+
+    private Compilation(File root, File generatedDir, File classDir) throws IOException {
+        mRoot = root;
+        mGeneratedDir = generatedDir;
+        mLoader = new URLClassLoader(new URL[]{classDir.toURI().toURL()}, Compilation.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> type = findLoadedClass(name);
+                    if (type == null) {
+                        try {
+                            type = findClass(name);
+                        } catch (ClassNotFoundException e) {
+                            return super.loadClass(name, resolve);
+                        }
+                    }
+                    if (resolve) {
+                        resolveClass(type);
+                    }
+                    return type;
+                }
+            }
+        };
+    }
+
+    /**
+     * Compile sources with the updater and manager processors
+     *
+     * @param sources sources keyed by qualified name of their top level type
+     * @param options processor options such as "updaterMetrics=com.example.Sink", without the -A prefix
+     */
+    public static Compilation compile(Map<String, String> sources, String... options) throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Tests must be run on a JDK");
+        }
+        final File root = Files.createTempDirectory("updater-compilation").toFile();
+        final File sourceDir = new File(root, "src");
+        final File generatedDir = new File(root, "generated");
+        final File classDir = new File(root, "classes");
+        generatedDir.mkdirs();
+        classDir.mkdirs();
+        final List<File> files = new ArrayList<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            final File file = new File(sourceDir, source.getKey().replace('.', File.separatorChar) + ".java");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), source.getValue().getBytes(Charset.forName("UTF-8")));
+            files.add(file);
+        }
+        final List<String> arguments = new ArrayList<>(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-s", generatedDir.getPath(),
+                "-d", classDir.getPath()));
+        for (String option : options) {
+            arguments.add("-A" + option);
+        }
+        final StringWriter diagnostics = new StringWriter();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            final Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+            final JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(diagnostics), fileManager, null, arguments, null, units);
+            task.setProcessors(Arrays.asList(new UpdaterProcessor(), new ManagerProcessor()));
+            if (!task.call()) {
+                throw new IllegalStateException("Compilation failed\n" + diagnostics);
+            }
+        }
+        return new Compilation(root, generatedDir, classDir);
+    }
+
+    /**
+     * @param name qualified name of a compiled class
+     */
+    public Class<?> load(String name) throws ClassNotFoundException {
+        return mLoader.loadClass(name);
+    }
+
+    /**
+     * Create an instance of a compiled class by its no-argument constructor
+     */
+    public Object newInstance(String name) throws ReflectiveOperationException {
+        return load(name).newInstance();
+    }
+
+    /**
+     * @param name qualified name of a generated top level class
+     * @return its source
+     */
+    public String generatedSource(String name) throws IOException {
+        final File file = new File(mGeneratedDir, name.replace('.', File.separatorChar) + ".java");
+        return new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Whether a top level class was generated
+     */
+    public boolean isGenerated(String name) {
+        return new File(mGeneratedDir, name.replace('.', File.separatorChar) + ".java").exists();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mLoader.close();
+        delete(mRoot);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,124 @@
+package cn.campusapp.updatercompiler.manager;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.campusapp.updater.Updater;
+import cn.campusapp.updater.UpdaterManager;
+import cn.campusapp.updatercompiler.Compilation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConsolidatedTest {
+    private static final String sPERSON = "consolidated.Person";
+    private static final String sADDRESS = "consolidated.Address";
+
+    private static Map<String, String> sources() {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(sPERSON, "package consolidated;\n"
+                + "import cn.campusapp.updater.*;\n"
+                + "@Updatable\n"
+                + "public class Person {\n"
+                + "    public String name;\n"
+                + "    @Version public long rev;\n"
+                + "    private int mAge;\n"
+                + "    public int getAge() { return mAge; }\n"
+                + "    public void setAge(int age) { mAge = age; }\n"
+                + "    @Updatable\n"
+                + "    public static class Badge { public int level; }\n"
+                + "}\n");
+        sources.put(sADDRESS, "package consolidated;\n"
+                + "@cn.campusapp.updater.Updatable\n"
+                + "public class Address {\n"
+                + "    public String city;\n"
+                + "}\n");
+        return sources;
+    }
+
+    private static Compilation compile() throws Exception {
+        return Compilation.compile(sources(), ManagerProcessor.OPTION_CONSOLIDATED + "=true");
+    }
+
+    private static UpdaterManager manager(Compilation compilation) throws Exception {
+        return (UpdaterManager) compilation.newInstance("cn.campusapp.updater.UpdaterManagerImpl");
+    }
+
+    @Test
+    public void noUpdaterClassIsGenerated() throws Exception {
+        try (Compilation compilation = compile()) {
+            assertTrue(compilation.isGenerated("cn.campusapp.updater.UpdaterManagerImpl"));
+            assertFalse(compilation.isGenerated(sPERSON + "Updater"));
+            assertFalse(compilation.isGenerated(sADDRESS + "Updater"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void oneDispatcherClassUpdatesEveryType() throws Exception {
+        try (Compilation compilation = compile()) {
+            final UpdaterManager manager = manager(compilation);
+            final Class<Object> person = (Class<Object>) compilation.load(sPERSON);
+            final Class<Object> address = (Class<Object>) compilation.load(sADDRESS);
+            final Updater<Object> personUpdater = manager.getUpdater(person);
+            final Updater<Object> addressUpdater = manager.getUpdater(address);
+
+            assertNotSame(personUpdater, addressUpdater);
+            assertSame(personUpdater.getClass(), addressUpdater.getClass());
+            assertSame(personUpdater, manager.getUpdater(person));
+
+            final Object oldPerson = person.newInstance();
+            final Object newPerson = person.newInstance();
+            person.getField("name").set(newPerson, "n");
+            person.getField("rev").setLong(newPerson, 2L);
+            person.getMethod("setAge", int.class).invoke(newPerson, 5);
+            personUpdater.update(oldPerson, newPerson);
+
+            assertEquals("n", person.getField("name").get(oldPerson));
+            assertEquals(5, person.getMethod("getAge").invoke(oldPerson));
+
+            final Class<Object> badge = (Class<Object>) compilation.load(sPERSON + "$Badge");
+            final Object oldBadge = badge.newInstance();
+            final Object newBadge = badge.newInstance();
+            badge.getField("level").setInt(newBadge, 3);
+            manager.getUpdater(badge).update(oldBadge, newBadge);
+
+            assertEquals(3, badge.getField("level").getInt(oldBadge));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void staleVersionIsIgnored() throws Exception {
+        try (Compilation compilation = compile()) {
+            final Class<Object> person = (Class<Object>) compilation.load(sPERSON);
+            final Updater<Object> updater = manager(compilation).getUpdater(person);
+            final Object oldPerson = person.newInstance();
+            person.getField("name").set(oldPerson, "new");
+            person.getField("rev").setLong(oldPerson, 2L);
+            final Object stale = person.newInstance();
+            person.getField("name").set(stale, "old");
+            person.getField("rev").setLong(stale, 1L);
+
+            updater.update(oldPerson, stale);
+
+            assertEquals("new", person.getField("name").get(oldPerson));
+        }
+    }
+
+    @Test
+    public void unknownTypeIsReported() throws Exception {
+        try (Compilation compilation = compile()) {
+            manager(compilation).getUpdater(String.class);
+            fail("String is not updatable");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains(String.class.getName()));
+        }
+    }
+}
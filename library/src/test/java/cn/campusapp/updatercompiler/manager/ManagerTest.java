@@ -0,0 +1,173 @@
+package cn.campusapp.updatercompiler.manager;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cn.campusapp.updater.Updater;
+import cn.campusapp.updater.UpdaterManager;
+import cn.campusapp.updater.UpdaterManagerImpl;
+import cn.campusapp.updatercompiler.model.Crowd;
+import cn.campusapp.updatercompiler.model.Journal;
+import cn.campusapp.updatercompiler.model.JournalUpdater;
+import cn.campusapp.updatercompiler.model.Observable;
+import cn.campusapp.updatercompiler.model.ObservableUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * UpdaterManagerImpl is referenced by this source, which compiles only if the manager is written in a round
+ * before the last one
+ */
+public class ManagerTest {
+
+    /**
+     * Loads classes compiled with the tests itself before asking its parent, so it tells which of them were loaded
+     */
+    private static final class IsolatingClassLoader extends URLClassLoader {
+
+        IsolatingClassLoader() {
+            super(new URL[]{ManagerTest.class.getProtectionDomain().getCodeSource().getLocation()},
+                    ManagerTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> type = findLoadedClass(name);
+                if (type == null) {
+                    try {
+                        type = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        return super.loadClass(name, resolve);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(type);
+                }
+                return type;
+            }
+        }
+
+        boolean isLoaded(Class<?> type) {
+            return findLoadedClass(type.getName()) != null;
+        }
+    }
+
+    @Test
+    public void updatersAreLookedUpByType() {
+        final UpdaterManager manager = new UpdaterManagerImpl();
+
+        assertTrue(manager.getUpdater(Observable.class) instanceof ObservableUpdater);
+        assertTrue(manager.getUpdater(Journal.class) instanceof JournalUpdater);
+        assertSame(manager.getUpdater(Observable.class), manager.getUpdater(Observable.class));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unknownTypeIsReported() {
+        new UpdaterManagerImpl().getUpdater(String.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullTypeIsRejected() {
+        new UpdaterManagerImpl().getUpdater(null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void collidingTypesFindTheirOwnUpdaters() throws Exception {
+        final UpdaterManager manager = new UpdaterManagerImpl();
+        final Class<?>[] types = Crowd.class.getDeclaredClasses();
+        assertEquals(40, types.length);
+
+        for (Class<?> type : types) {
+            final Object oldEntity = type.newInstance();
+            final Object newEntity = type.newInstance();
+            final Field value = type.getField("value");
+            value.setInt(newEntity, 7);
+
+            ((Updater<Object>) manager.getUpdater(type)).update(oldEntity, newEntity);
+
+            assertEquals(7, value.getInt(oldEntity));
+            assertTrue(manager.getUpdater(type).getClass().getSimpleName().startsWith(type.getSimpleName()));
+        }
+    }
+
+    @Test
+    public void unknownTypesAreReportedAfterProbing() {
+        final UpdaterManager manager = new UpdaterManagerImpl();
+        for (Class<?> type : new Class<?>[]{String.class, Integer.class, Object.class, Crowd.class, ManagerTest.class}) {
+            try {
+                manager.getUpdater(type);
+                fail(type + " must not be found");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains(type.getName()));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentFirstLookupsPublishOneUpdater() throws Exception {
+        final UpdaterManager manager = new UpdaterManagerImpl();
+        final Class<?>[] types = Crowd.class.getDeclaredClasses();
+        final int threadCount = 8;
+        final Object[][] seen = new Object[threadCount][types.length];
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final Object[] updaters = seen[t];
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        for (int i = 0; i < types.length; i++) {
+                            updaters[i] = manager.getUpdater(types[i]);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(null, failure.get());
+        for (int i = 0; i < types.length; i++) {
+            for (int t = 0; t < threadCount; t++) {
+                assertSame(seen[0][i], seen[t][i]);
+            }
+            assertSame(seen[0][i], manager.getUpdater(types[i]));
+        }
+    }
+
+    @Test
+    public void updatersAreLoadedOnFirstLookup() throws Exception {
+        try (IsolatingClassLoader loader = new IsolatingClassLoader()) {
+            final UpdaterManager manager = (UpdaterManager) loader.loadClass(UpdaterManagerImpl.class.getName()).newInstance();
+            assertFalse(loader.isLoaded(ObservableUpdater.class));
+            assertFalse(loader.isLoaded(JournalUpdater.class));
+
+            manager.getUpdater(loader.loadClass(Observable.class.getName()));
+
+            assertTrue(loader.isLoaded(ObservableUpdater.class));
+            assertFalse(loader.isLoaded(JournalUpdater.class));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package cn.campusapp.updatercompiler.model;
+
+import java.util.List;
+import java.util.Map;
+
+import cn.campusapp.updater.MergeInPlace;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity whose containers are merged in place
+ */
+@Updatable
+@MergeInPlace
+public class Containers {
+    public List<String> tags;
+    public Map<String, Integer> counts;
+    public int[] scores;
+    public List<Keyed> items;
+}
@@ -0,0 +1,209 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Holder of many updatable types, so the hash table of the manager has collisions
+ */
+public class Crowd {
+
+    @Updatable
+    public static class Member0 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member1 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member2 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member3 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member4 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member5 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member6 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member7 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member8 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member9 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member10 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member11 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member12 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member13 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member14 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member15 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member16 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member17 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member18 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member19 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member20 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member21 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member22 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member23 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member24 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member25 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member26 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member27 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member28 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member29 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member30 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member31 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member32 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member33 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member34 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member35 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member36 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member37 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member38 {
+        public int value;
+    }
+
+    @Updatable
+    public static class Member39 {
+        public int value;
+    }
+}
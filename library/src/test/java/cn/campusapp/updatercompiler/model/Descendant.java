@@ -0,0 +1,12 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Updatable;
+import cn.campusapp.updatercompiler.model.base.Ancestor;
+
+/**
+ * Updatable subclass, whose inherited fields and properties are updated too
+ */
+@Updatable
+public class Descendant extends Ancestor<String> {
+    public int own;
+}
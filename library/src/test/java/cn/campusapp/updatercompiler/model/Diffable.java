@@ -0,0 +1,25 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Diffed;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity with diff and apply, holding a value of every patch array kind
+ */
+@Updatable
+@Diffed
+public class Diffable {
+    public int count;
+    public double ratio;
+    public boolean flag;
+    public String name;
+    private long mStamp;
+
+    public long getStamp() {
+        return mStamp;
+    }
+
+    public void setStamp(long stamp) {
+        mStamp = stamp;
+    }
+}
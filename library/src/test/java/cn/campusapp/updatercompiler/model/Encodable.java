@@ -0,0 +1,30 @@
+package cn.campusapp.updatercompiler.model;
+
+import java.util.List;
+
+import cn.campusapp.updater.DeltaEncoded;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity with the delta codec, holding a field of every encoded kind and one which is not encoded
+ */
+@Updatable
+@DeltaEncoded
+public class Encodable {
+    public enum Color {
+        RED, GREEN
+    }
+
+    public boolean flag;
+    public byte tiny;
+    public short small;
+    public char letter;
+    public int number;
+    public long total;
+    public float ratio;
+    public double score;
+    public Integer boxed;
+    public String text;
+    public Color color;
+    public List<String> tags;
+}
@@ -0,0 +1,66 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Immutable entity with an all-fields constructor, merged by creating new instances
+ */
+@Updatable
+public final class Frozen {
+    public final int x;
+    private final String mLabel;
+
+    public Frozen(int x, String label) {
+        this.x = x;
+        mLabel = label;
+    }
+
+    public String getLabel() {
+        return mLabel;
+    }
+
+    /**
+     * Immutable entity created by a builder
+     */
+    @Updatable
+    public static final class Built {
+        private final long mId;
+        private final String mName;
+
+        private Built(Builder builder) {
+            mId = builder.mId;
+            mName = builder.mName;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        public static final class Builder {
+            long mId;
+            String mName;
+
+            public Builder id(long id) {
+                mId = id;
+                return this;
+            }
+
+            public Builder setName(String name) {
+                mName = name;
+                return this;
+            }
+
+            public Built build() {
+                return new Built(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Journaled;
+import cn.campusapp.updater.Observed;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Journaled entity, observed so listeners of journaled updates can be checked
+ */
+@Updatable
+@Journaled
+@Observed
+public class Journal {
+    public int count;
+    public double ratio;
+    public String title;
+    private long mStamp;
+
+    public long getStamp() {
+        return mStamp;
+    }
+
+    public void setStamp(long stamp) {
+        mStamp = stamp;
+    }
+}
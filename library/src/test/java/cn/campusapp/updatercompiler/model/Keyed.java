@@ -0,0 +1,19 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Key;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity identified by a final key field, merged in lists by key
+ */
+@Updatable
+public class Keyed {
+    @Key
+    public final long id;
+    public String name;
+
+    public Keyed(long id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+}
@@ -0,0 +1,16 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Observed;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Observed entity, every reference field of which is omit-null
+ */
+@Updatable
+@Observed
+public class Observable {
+    public String name;
+    public String city;
+    public int age;
+    public long rev;
+}
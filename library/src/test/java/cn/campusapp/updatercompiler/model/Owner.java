@@ -0,0 +1,14 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.MergeNested;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity whose nested updatable member is merged in place
+ */
+@Updatable
+public class Owner {
+    @MergeNested
+    public Settings settings;
+    public Settings replaced;
+}
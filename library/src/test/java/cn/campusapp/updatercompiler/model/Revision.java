@@ -0,0 +1,16 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Masked;
+import cn.campusapp.updater.Updatable;
+import cn.campusapp.updater.Version;
+
+/**
+ * Versioned entity, whose version field name contains a dollar sign
+ */
+@Updatable
+@Masked
+public class Revision {
+    @Version
+    public long rev$;
+    public int value;
+}
@@ -0,0 +1,19 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Sequence;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity in seqlock mode, whose two fields are always written as a pair
+ */
+@Updatable
+public class Sequenced {
+    @Sequence
+    volatile int seq;
+    public long low;
+    public long high;
+
+    public int getSeq() {
+        return seq;
+    }
+}
@@ -0,0 +1,12 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Updatable entity nested in {@link Owner}
+ */
+@Updatable
+public class Settings {
+    public int theme;
+    public String language;
+}
@@ -0,0 +1,30 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.CompareByEquals;
+import cn.campusapp.updater.Skip;
+import cn.campusapp.updater.SkipUnchanged;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity whose fields are written only if changed, counting calls of its setter
+ */
+@Updatable
+@SkipUnchanged
+public class Settled {
+    public int level;
+    @CompareByEquals
+    public String bio;
+    public String nickname;
+    private String mCity;
+    @Skip
+    public int setCityCalls;
+
+    public String getCity() {
+        return mCity;
+    }
+
+    public void setCity(String city) {
+        setCityCalls++;
+        mCity = city;
+    }
+}
@@ -0,0 +1,20 @@
+package cn.campusapp.updatercompiler.model;
+
+import cn.campusapp.updater.Streamed;
+import cn.campusapp.updater.Updatable;
+
+/**
+ * Entity read from JSON tokens
+ */
+@Updatable
+@Streamed
+public class Streamable {
+    public enum Kind {
+        FREE, PAID
+    }
+
+    public Kind kind;
+    public char grade;
+    public Character initial;
+    public int age;
+}
@@ -0,0 +1,26 @@
+package cn.campusapp.updatercompiler.model.base;
+
+/**
+ * Superclass in another package, which is not updatable itself
+ */
+public class Ancestor<T> {
+    public T payload;
+    int hidden;
+    private long mStamp;
+
+    public long getStamp() {
+        return mStamp;
+    }
+
+    public void setStamp(long stamp) {
+        mStamp = stamp;
+    }
+
+    public int getHidden() {
+        return hidden;
+    }
+
+    public void setHiddenForTest(int value) {
+        hidden = value;
+    }
+}
@@ -0,0 +1,106 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import cn.campusapp.updater.FieldAccessor;
+import cn.campusapp.updatercompiler.Compilation;
+import cn.campusapp.updatercompiler.manager.ManagerProcessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AccessorTest {
+    private static final String sRECORD = "accessors.Record";
+
+    private static final Map<String, String> sSOURCES = Collections.singletonMap(sRECORD, "package accessors;\n"
+            + "@cn.campusapp.updater.Updatable\n"
+            + "public class Record {\n"
+            + "    public int age;\n"
+            + "    public double score;\n"
+            + "    public String name;\n"
+            + "    private long mStamp;\n"
+            + "    public long getStamp() { return mStamp; }\n"
+            + "    public void setStamp(long stamp) { mStamp = stamp; }\n"
+            + "}\n");
+
+    @SuppressWarnings("unchecked")
+    private static FieldAccessor<Object> accessor(Compilation compilation) throws Exception {
+        final Object manager = compilation.newInstance("cn.campusapp.updater.UpdaterManagerImpl");
+        return (FieldAccessor<Object>) manager.getClass().getMethod("getAccessor", Class.class)
+                .invoke(manager, compilation.load(sRECORD));
+    }
+
+    private static int index(Compilation compilation, String constant) throws Exception {
+        return compilation.load(sRECORD + "Updater").getField(constant).getInt(null);
+    }
+
+    @Test
+    public void fieldsAreDescribedByIndex() throws Exception {
+        try (Compilation compilation = Compilation.compile(sSOURCES, ManagerProcessor.OPTION_ACCESSORS + "=true")) {
+            final FieldAccessor<Object> accessor = accessor(compilation);
+
+            assertEquals(4, accessor.fieldCount());
+            assertEquals(index(compilation, "FIELD_AGE"), accessor.fieldIndex("age"));
+            final int stamp = index(compilation, "FIELD_STAMP");
+            assertEquals(stamp, accessor.fieldIndex(accessor.fieldName(stamp)));
+            assertSame(long.class, accessor.fieldType(stamp));
+            assertEquals(-1, accessor.fieldIndex("missing"));
+            assertEquals("name", accessor.fieldName(index(compilation, "FIELD_NAME")));
+            assertSame(int.class, accessor.fieldType(index(compilation, "FIELD_AGE")));
+            assertSame(String.class, accessor.fieldType(index(compilation, "FIELD_NAME")));
+        }
+    }
+
+    @Test
+    public void primitivesAreReadAndWrittenWithoutBoxing() throws Exception {
+        try (Compilation compilation = Compilation.compile(sSOURCES, ManagerProcessor.OPTION_ACCESSORS + "=true")) {
+            final FieldAccessor<Object> accessor = accessor(compilation);
+            final Object record = compilation.newInstance(sRECORD);
+            final int age = index(compilation, "FIELD_AGE");
+            final int stamp = index(compilation, "FIELD_STAMP");
+
+            accessor.setInt(record, age, 7);
+            accessor.setLong(record, stamp, 9L);
+            accessor.setDouble(record, index(compilation, "FIELD_SCORE"), 1.5);
+
+            assertEquals(7, record.getClass().getField("age").getInt(record));
+            assertEquals(7, accessor.getInt(record, age));
+            assertEquals(9L, accessor.getLong(record, stamp));
+            assertEquals(1.5, accessor.getDouble(record, index(compilation, "FIELD_SCORE")), 0.0);
+        }
+    }
+
+    @Test
+    public void boxedAccessAndTypeMismatch() throws Exception {
+        try (Compilation compilation = Compilation.compile(sSOURCES, ManagerProcessor.OPTION_ACCESSORS + "=true")) {
+            final FieldAccessor<Object> accessor = accessor(compilation);
+            final Object record = compilation.newInstance(sRECORD);
+            final int name = index(compilation, "FIELD_NAME");
+
+            accessor.set(record, name, "a");
+            accessor.set(record, index(compilation, "FIELD_AGE"), 3);
+
+            assertEquals("a", accessor.get(record, name));
+            assertEquals(3, accessor.get(record, index(compilation, "FIELD_AGE")));
+            try {
+                accessor.getInt(record, name);
+                fail("name is not an int");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(String.valueOf(name)));
+            }
+        }
+    }
+
+    @Test
+    public void updatersAreNotAccessorsByDefault() throws Exception {
+        try (Compilation compilation = Compilation.compile(sSOURCES)) {
+            assertFalse(FieldAccessor.class.isAssignableFrom(compilation.load(sRECORD + "Updater")));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Keyed;
+import cn.campusapp.updatercompiler.model.KeyedUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CacheTest {
+
+    @Test
+    public void incomingIsMergedIntoCanonical() {
+        final KeyedUpdater.Cache cache = new KeyedUpdater.Cache(new KeyedUpdater(), 10, false);
+        final Keyed canonical = new Keyed(1L, "a");
+
+        assertSame(canonical, cache.canonicalize(canonical));
+        assertSame(canonical, cache.canonicalize(new Keyed(1L, "b")));
+
+        assertEquals("b", canonical.name);
+        assertEquals(1L, cache.hitCount());
+        assertEquals(1L, cache.missCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedKeyIsEvicted() {
+        final KeyedUpdater.Cache cache = new KeyedUpdater.Cache(new KeyedUpdater(), 2, false);
+        final Keyed first = cache.canonicalize(new Keyed(1L, "a"));
+        final Keyed second = cache.canonicalize(new Keyed(2L, "b"));
+        cache.canonicalize(new Keyed(1L, "a"));
+
+        cache.canonicalize(new Keyed(3L, "c"));
+
+        assertEquals(2, cache.size());
+        assertSame(first, cache.canonicalize(new Keyed(1L, "a")));
+        assertNotSame(second, cache.canonicalize(new Keyed(2L, "b")));
+        assertEquals(2L, cache.hitCount());
+        assertEquals(4L, cache.missCount());
+    }
+
+    @Test
+    public void collectedWeakValuesArePurged() throws InterruptedException {
+        final KeyedUpdater.Cache cache = new KeyedUpdater.Cache(new KeyedUpdater(), 1000, true);
+        for (long key = 0L; key < 100L; key++) {
+            cache.canonicalize(new Keyed(key, "a"));
+        }
+        final Keyed kept = cache.canonicalize(new Keyed(100L, "a"));
+
+        for (int i = 0; i < 50 && cache.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+
+        assertEquals(1, cache.size());
+        assertSame(kept, cache.canonicalize(new Keyed(100L, "b")));
+        assertEquals("b", kept.name);
+    }
+}
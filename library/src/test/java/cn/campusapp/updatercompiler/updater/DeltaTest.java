@@ -0,0 +1,96 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import cn.campusapp.updatercompiler.model.Encodable;
+import cn.campusapp.updatercompiler.model.EncodableUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTest {
+
+    private static Encodable changed() {
+        final Encodable entity = new Encodable();
+        entity.flag = true;
+        entity.tiny = -3;
+        entity.small = 300;
+        entity.letter = 'z';
+        entity.number = -70000;
+        entity.total = Long.MIN_VALUE;
+        entity.ratio = 1.5f;
+        entity.score = -2.25;
+        entity.boxed = 7;
+        entity.text = "h\u00e9llo";
+        entity.color = Encodable.Color.GREEN;
+        entity.tags = Collections.singletonList("a");
+        return entity;
+    }
+
+    private static void roundTrip(ByteBuffer buffer) {
+        final EncodableUpdater updater = new EncodableUpdater();
+        final long written = updater.writeDelta(new Encodable(), changed(), buffer);
+        buffer.flip();
+        final Encodable target = new Encodable();
+
+        final long read = updater.readDelta(buffer, target);
+
+        assertEquals(written, read);
+        assertFalse(buffer.hasRemaining());
+        assertFalse((written & 1L << EncodableUpdater.FIELD_TAGS) != 0L);
+        assertTrue(target.flag);
+        assertEquals(-3, target.tiny);
+        assertEquals(300, target.small);
+        assertEquals('z', target.letter);
+        assertEquals(-70000, target.number);
+        assertEquals(Long.MIN_VALUE, target.total);
+        assertEquals(1.5f, target.ratio, 0f);
+        assertEquals(-2.25, target.score, 0.0);
+        assertEquals(Integer.valueOf(7), target.boxed);
+        assertEquals("h\u00e9llo", target.text);
+        assertSame(Encodable.Color.GREEN, target.color);
+        assertNull(target.tags);
+    }
+
+    @Test
+    public void roundTripThroughHeapBuffer() {
+        roundTrip(ByteBuffer.allocate(256));
+    }
+
+    @Test
+    public void roundTripThroughDirectBuffer() {
+        roundTrip(ByteBuffer.allocateDirect(256));
+    }
+
+    @Test
+    public void unchangedEntityEncodesBitmapOnly() {
+        final Encodable entity = changed();
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        assertEquals(0L, new EncodableUpdater().writeDelta(entity, changed(), buffer));
+        assertEquals((EncodableUpdater.COUNT_FIELDS + 7) / 8, buffer.position());
+    }
+
+    @Test
+    public void readDeltaLeavesFieldsNotEncoded() {
+        final EncodableUpdater updater = new EncodableUpdater();
+        final Encodable oldEntity = new Encodable();
+        final Encodable newEntity = new Encodable();
+        newEntity.number = 4;
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        updater.writeDelta(oldEntity, newEntity, buffer);
+        buffer.flip();
+        final Encodable target = changed();
+
+        assertEquals(1L << EncodableUpdater.FIELD_NUMBER, updater.readDelta(buffer, target));
+        assertEquals(4, target.number);
+        assertEquals("h\u00e9llo", target.text);
+        assertEquals(Long.MIN_VALUE, target.total);
+    }
+}
@@ -0,0 +1,73 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Diffable;
+import cn.campusapp.updatercompiler.model.DiffableUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiffTest {
+
+    private static Diffable diffable(int count, double ratio, boolean flag, String name, long stamp) {
+        final Diffable entity = new Diffable();
+        entity.count = count;
+        entity.ratio = ratio;
+        entity.flag = flag;
+        entity.name = name;
+        entity.setStamp(stamp);
+        return entity;
+    }
+
+    @Test
+    public void diffRecordsChangedFieldsOnly() {
+        final DiffableUpdater updater = new DiffableUpdater();
+        final Diffable oldEntity = diffable(1, 2.0, false, "a", 5L);
+
+        final DiffableUpdater.Patch patch = updater.diff(oldEntity, diffable(1, 3.0, true, null, 6L));
+
+        assertFalse(patch.isChanged(DiffableUpdater.FIELD_COUNT));
+        assertTrue(patch.isChanged(DiffableUpdater.FIELD_RATIO));
+        assertEquals(3.0, patch.doubleValue(DiffableUpdater.FIELD_RATIO), 0.0);
+        assertTrue(patch.isChanged(DiffableUpdater.FIELD_FLAG));
+        assertTrue(patch.booleanValue(DiffableUpdater.FIELD_FLAG));
+        assertFalse(patch.isChanged(DiffableUpdater.FIELD_NAME));
+        assertTrue(patch.isChanged(DiffableUpdater.FIELD_STAMP));
+        assertEquals(6L, patch.longValue(DiffableUpdater.FIELD_STAMP));
+        assertEquals(2.0, oldEntity.ratio, 0.0);
+    }
+
+    @Test
+    public void applyWritesPatchToAnyEntity() {
+        final DiffableUpdater updater = new DiffableUpdater();
+        final DiffableUpdater.Patch patch = updater.diff(diffable(1, 2.0, false, "a", 5L), diffable(1, 2.0, false, "b", 7L));
+        final Diffable first = diffable(9, 9.0, true, "z", 0L);
+        final Diffable second = diffable(8, 8.0, false, "y", 0L);
+
+        updater.apply(first, patch);
+        updater.apply(second, patch);
+
+        assertEquals(9, first.count);
+        assertEquals("b", first.name);
+        assertEquals(7L, first.getStamp());
+        assertEquals(8, second.count);
+        assertEquals("b", second.name);
+        assertEquals(7L, second.getStamp());
+    }
+
+    @Test
+    public void unchangedEntitiesGiveEmptyPatch() {
+        final DiffableUpdater updater = new DiffableUpdater();
+        final Diffable entity = diffable(1, 2.0, true, "a", 5L);
+
+        assertTrue(updater.diff(entity, diffable(1, 2.0, true, "a", 5L)).isEmpty());
+    }
+
+    @Test
+    public void fieldNamedCountKeepsItsIndexConstant() {
+        assertEquals(0, DiffableUpdater.FIELD_COUNT);
+        assertEquals(5, DiffableUpdater.COUNT_FIELDS);
+    }
+}
@@ -0,0 +1,66 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import cn.campusapp.updatercompiler.model.BuiltUpdater;
+import cn.campusapp.updatercompiler.model.Frozen;
+import cn.campusapp.updatercompiler.model.FrozenUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImmutableMergeTest {
+
+    @Test
+    public void unchangedMergeReturnsOld() {
+        final Frozen frozen = new Frozen(1, "a");
+
+        assertSame(frozen, new FrozenUpdater().merge(frozen, new Frozen(1, "a")));
+    }
+
+    @Test
+    public void changedMergeCreatesOneInstance() {
+        final Frozen frozen = new Frozen(1, "a");
+
+        final Frozen merged = new FrozenUpdater().merge(frozen, new Frozen(2, "b"));
+
+        assertNotSame(frozen, merged);
+        assertEquals(2, merged.x);
+        assertEquals("b", merged.getLabel());
+        assertEquals(1, frozen.x);
+    }
+
+    @Test
+    public void nullReferencesKeepOldValues() {
+        final Frozen merged = new FrozenUpdater().merge(new Frozen(1, "a"), new Frozen(2, null));
+
+        assertEquals("a", merged.getLabel());
+    }
+
+    @Test
+    public void mergedSnapshotIsPublished() {
+        final FrozenUpdater updater = new FrozenUpdater();
+        final Frozen frozen = new Frozen(1, "a");
+        final AtomicReference<Frozen> current = new AtomicReference<>(frozen);
+
+        assertTrue(current.compareAndSet(frozen, updater.merge(frozen, new Frozen(3, "a"))));
+        assertEquals(3, current.get().x);
+    }
+
+    @Test
+    public void builderMergeCreatesOneInstance() {
+        final BuiltUpdater updater = new BuiltUpdater();
+        final Frozen.Built built = Frozen.Built.builder().id(1L).setName("x").build();
+
+        final Frozen.Built merged = updater.merge(built, Frozen.Built.builder().id(1L).setName("y").build());
+
+        assertNotSame(built, merged);
+        assertEquals(1L, merged.getId());
+        assertEquals("y", merged.getName());
+        assertSame(merged, updater.merge(merged, merged));
+    }
+}
@@ -0,0 +1,40 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Descendant;
+import cn.campusapp.updatercompiler.model.DescendantUpdater;
+
+import static org.junit.Assert.assertEquals;
+
+public class InheritanceTest {
+
+    @Test
+    public void inheritedFieldsAndPropertiesAreUpdated() {
+        final Descendant oldEntity = new Descendant();
+        final Descendant newEntity = new Descendant();
+        newEntity.payload = "p";
+        newEntity.setStamp(9L);
+        newEntity.own = 1;
+
+        final long changes = new DescendantUpdater().updateWithChanges(oldEntity, newEntity);
+
+        assertEquals("p", oldEntity.payload);
+        assertEquals(9L, oldEntity.getStamp());
+        assertEquals(1, oldEntity.own);
+        assertEquals(1L << DescendantUpdater.FIELD_PAYLOAD | 1L << DescendantUpdater.FIELD_STAMP
+                | 1L << DescendantUpdater.FIELD_OWN, changes);
+    }
+
+    @Test
+    public void inaccessibleInheritedFieldsAreLeftAlone() {
+        final Descendant oldEntity = new Descendant();
+        final Descendant newEntity = new Descendant();
+        newEntity.setHiddenForTest(5);
+
+        new DescendantUpdater().update(oldEntity, newEntity);
+
+        assertEquals(0, oldEntity.getHidden());
+        assertEquals(3, DescendantUpdater.COUNT_FIELDS);
+    }
+}
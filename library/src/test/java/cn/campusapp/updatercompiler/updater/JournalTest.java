@@ -0,0 +1,86 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.campusapp.updatercompiler.model.Journal;
+import cn.campusapp.updatercompiler.model.JournalUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    private static Journal journal(int count, double ratio, String title, long stamp) {
+        final Journal entity = new Journal();
+        entity.count = count;
+        entity.ratio = ratio;
+        entity.title = title;
+        entity.setStamp(stamp);
+        return entity;
+    }
+
+    @Test
+    public void rollbackRestoresOverwrittenFields() {
+        final JournalUpdater updater = new JournalUpdater();
+        final JournalUpdater.Patch journal = new JournalUpdater.Patch();
+        final Journal entity = journal(1, 2.0, "a", 5L);
+
+        updater.update(entity, journal(1, 3.0, null, 6L), journal);
+
+        assertEquals(3.0, entity.ratio, 0.0);
+        assertEquals("a", entity.title);
+        assertEquals(6L, entity.getStamp());
+        assertFalse(journal.isChanged(JournalUpdater.FIELD_COUNT));
+        assertTrue(journal.isChanged(JournalUpdater.FIELD_RATIO));
+        assertFalse(journal.isChanged(JournalUpdater.FIELD_TITLE));
+        assertTrue(journal.isChanged(JournalUpdater.FIELD_STAMP));
+
+        updater.rollback(entity, journal);
+
+        assertEquals(1, entity.count);
+        assertEquals(2.0, entity.ratio, 0.0);
+        assertEquals("a", entity.title);
+        assertEquals(5L, entity.getStamp());
+    }
+
+    @Test
+    public void journalIsClearedByEveryUpdate() {
+        final JournalUpdater updater = new JournalUpdater();
+        final JournalUpdater.Patch journal = new JournalUpdater.Patch();
+        final Journal entity = journal(1, 2.0, "a", 5L);
+        updater.update(entity, journal(2, 2.0, "b", 5L), journal);
+        assertFalse(journal.isEmpty());
+
+        updater.update(entity, entity, journal);
+
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void listenersObserveJournaledUpdates() {
+        final JournalUpdater updater = new JournalUpdater();
+        final List<Long> masks = new ArrayList<>();
+        final List<Object> titles = new ArrayList<>();
+        updater.addListener(new JournalUpdater.Listener() {
+            @Override
+            public void onFieldsChanged(Journal entity, JournalUpdater.Patch previous) {
+                masks.add(previous.mask);
+                titles.add(previous.objectValue(JournalUpdater.FIELD_TITLE));
+            }
+        });
+        final JournalUpdater.Patch journal = new JournalUpdater.Patch();
+        final Journal entity = journal(1, 2.0, null, 5L);
+
+        updater.update(entity, journal(1, 2.0, "b", 5L), journal);
+        updater.update(entity, entity, journal);
+
+        assertEquals(1, masks.size());
+        assertEquals(Long.valueOf(1L << JournalUpdater.FIELD_TITLE), masks.get(0));
+        assertNull(titles.get(0));
+    }
+}
@@ -0,0 +1,82 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.campusapp.updatercompiler.model.Observable;
+import cn.campusapp.updatercompiler.model.ObservableUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerTest {
+
+    private static final class Recorder implements ObservableUpdater.Listener {
+        final List<ObservableUpdater.Patch> mPatches = new ArrayList<>();
+
+        @Override
+        public void onFieldsChanged(Observable entity, ObservableUpdater.Patch previous) {
+            mPatches.add(previous);
+        }
+    }
+
+    @Test
+    public void reportsPreviousValuesOfChangedFields() {
+        final ObservableUpdater updater = new ObservableUpdater();
+        final Recorder recorder = new Recorder();
+        updater.addListener(recorder);
+        final Observable oldEntity = new Observable();
+        oldEntity.city = "paris";
+        oldEntity.rev = 1L;
+        final Observable newEntity = new Observable();
+        newEntity.name = "bob";
+        newEntity.city = "rome";
+        newEntity.age = 3;
+        newEntity.rev = 1L;
+
+        final long changes = updater.updateWithChanges(oldEntity, newEntity);
+
+        assertEquals(1L << ObservableUpdater.FIELD_NAME | 1L << ObservableUpdater.FIELD_CITY
+                | 1L << ObservableUpdater.FIELD_AGE, changes);
+        assertEquals(1, recorder.mPatches.size());
+        final ObservableUpdater.Patch previous = recorder.mPatches.get(0);
+        assertEquals(changes, previous.mask);
+        assertTrue(previous.isChanged(ObservableUpdater.FIELD_NAME));
+        assertNull(previous.objectValue(ObservableUpdater.FIELD_NAME));
+        assertTrue(previous.isChanged(ObservableUpdater.FIELD_CITY));
+        assertEquals("paris", previous.objectValue(ObservableUpdater.FIELD_CITY));
+        assertTrue(previous.isChanged(ObservableUpdater.FIELD_AGE));
+        assertEquals(0, previous.intValue(ObservableUpdater.FIELD_AGE));
+        assertFalse(previous.isChanged(ObservableUpdater.FIELD_REV));
+        assertEquals("bob", oldEntity.name);
+    }
+
+    @Test
+    public void skipsOmittedNullsAndUnchangedUpdates() {
+        final ObservableUpdater updater = new ObservableUpdater();
+        final Recorder recorder = new Recorder();
+        updater.addListener(recorder);
+        final Observable oldEntity = new Observable();
+        oldEntity.name = "bob";
+        final Observable newEntity = new Observable();
+        newEntity.age = 4;
+
+        updater.update(oldEntity, newEntity);
+        assertEquals(1, recorder.mPatches.size());
+        assertEquals(1L << ObservableUpdater.FIELD_AGE, recorder.mPatches.get(0).mask);
+        assertEquals("bob", oldEntity.name);
+
+        updater.update(oldEntity, newEntity);
+        assertEquals(1, recorder.mPatches.size());
+
+        updater.removeListener(recorder);
+        newEntity.age = 5;
+        updater.update(oldEntity, newEntity);
+        assertEquals(1, recorder.mPatches.size());
+        assertEquals(5, oldEntity.age);
+    }
+}
@@ -0,0 +1,70 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Wide;
+import cn.campusapp.updatercompiler.model.WideUpdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MaskTest {
+
+    private static long[] mask(int... indexes) {
+        final long[] mask = new long[(WideUpdater.COUNT_FIELDS + 63) >>> 6];
+        for (int index : indexes) {
+            mask[index >>> 6] |= 1L << (index & 63);
+        }
+        return mask;
+    }
+
+    @Test
+    public void wideMaskSelectsFieldsInBothWords() {
+        final Wide oldEntity = new Wide();
+        final Wide newEntity = new Wide();
+        newEntity.f1 = 1;
+        newEntity.f2 = 2;
+        newEntity.f68 = 68;
+        newEntity.f69 = 69;
+
+        new WideUpdater().update(oldEntity, newEntity, mask(WideUpdater.FIELD_F1, WideUpdater.FIELD_F69));
+
+        assertEquals(1, oldEntity.f1);
+        assertEquals(0, oldEntity.f2);
+        assertEquals(0, oldEntity.f68);
+        assertEquals(69, oldEntity.f69);
+    }
+
+    @Test
+    public void wideMaskedChangesReportOnlySelectedChangedFields() {
+        final Wide oldEntity = new Wide();
+        oldEntity.f0 = 5;
+        final Wide newEntity = new Wide();
+        newEntity.f0 = 5;
+        newEntity.f63 = 63;
+        newEntity.f64 = 64;
+        newEntity.f65 = 65;
+
+        final long[] changes = new WideUpdater().updateWithChanges(oldEntity, newEntity,
+                mask(WideUpdater.FIELD_F0, WideUpdater.FIELD_F63, WideUpdater.FIELD_F64));
+
+        assertArrayEquals(mask(WideUpdater.FIELD_F63, WideUpdater.FIELD_F64), changes);
+        assertEquals(63, oldEntity.f63);
+        assertEquals(64, oldEntity.f64);
+        assertEquals(0, oldEntity.f65);
+    }
+
+    @Test
+    public void emptyWideMaskLeavesEntityAlone() {
+        final Wide oldEntity = new Wide();
+        final Wide newEntity = new Wide();
+        newEntity.f30 = 30;
+        newEntity.f66 = 66;
+
+        final long[] changes = new WideUpdater().updateWithChanges(oldEntity, newEntity, mask());
+
+        assertArrayEquals(mask(), changes);
+        assertEquals(0, oldEntity.f30);
+        assertEquals(0, oldEntity.f66);
+    }
+}
@@ -0,0 +1,80 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cn.campusapp.updatercompiler.model.Keyed;
+import cn.campusapp.updatercompiler.model.KeyedUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MergeAllTest {
+
+    @Test
+    public void matchedEntitiesAreUpdatedInPlace() {
+        final Keyed first = new Keyed(1L, "a");
+        final Keyed second = new Keyed(2L, "b");
+        final List<Keyed> existing = new ArrayList<>(Arrays.asList(first, second));
+
+        final KeyedUpdater.MergeResult result = new KeyedUpdater().mergeAll(existing,
+                Arrays.asList(new Keyed(2L, "y"), new Keyed(1L, "x")));
+
+        assertEquals(Arrays.asList(first, second), existing);
+        assertEquals("x", first.name);
+        assertEquals("y", second.name);
+        assertEquals(2, result.updated);
+        assertTrue(result.inserted.isEmpty());
+        assertTrue(result.removed.isEmpty());
+    }
+
+    @Test
+    public void unmatchedIncomingAreAppendedAndUnmatchedExistingRemoved() {
+        final Keyed first = new Keyed(1L, "a");
+        final Keyed second = new Keyed(2L, "b");
+        final Keyed third = new Keyed(3L, "c");
+        final List<Keyed> existing = new ArrayList<>(Arrays.asList(first, second, third));
+        final Keyed fourth = new Keyed(4L, "d");
+
+        final KeyedUpdater.MergeResult result = new KeyedUpdater().mergeAll(existing,
+                Arrays.asList(fourth, new Keyed(3L, "z"), new Keyed(1L, "x")));
+
+        assertEquals(Arrays.asList(first, third, fourth), existing);
+        assertEquals("x", first.name);
+        assertEquals("z", third.name);
+        assertEquals(2, result.updated);
+        assertEquals(Arrays.asList(fourth), result.inserted);
+        assertEquals(Arrays.asList(second), result.removed);
+    }
+
+    @Test
+    public void duplicateIncomingKeysUpdateTheSameEntity() {
+        final Keyed first = new Keyed(1L, "a");
+        final List<Keyed> existing = new ArrayList<>(Arrays.asList(first));
+
+        final KeyedUpdater.MergeResult result = new KeyedUpdater().mergeAll(existing,
+                Arrays.asList(new Keyed(1L, "x"), new Keyed(1L, "y")));
+
+        assertEquals(1, existing.size());
+        assertSame(first, existing.get(0));
+        assertEquals("y", first.name);
+        assertEquals(2, result.updated);
+        assertTrue(result.removed.isEmpty());
+    }
+
+    @Test
+    public void emptyIncomingRemovesAll() {
+        final Keyed first = new Keyed(1L, "a");
+        final List<Keyed> existing = new ArrayList<>(Arrays.asList(first));
+
+        final KeyedUpdater.MergeResult result = new KeyedUpdater().mergeAll(existing, new ArrayList<Keyed>());
+
+        assertTrue(existing.isEmpty());
+        assertEquals(Arrays.asList(first), result.removed);
+        assertEquals(0, result.updated);
+    }
+}
@@ -0,0 +1,92 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.campusapp.updatercompiler.model.Containers;
+import cn.campusapp.updatercompiler.model.ContainersUpdater;
+import cn.campusapp.updatercompiler.model.Keyed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MergeInPlaceTest {
+
+    @Test
+    public void listsAndMapsKeepTheirIdentity() {
+        final Containers oldEntity = new Containers();
+        final List<String> tags = new ArrayList<>(Arrays.asList("a"));
+        oldEntity.tags = tags;
+        final Map<String, Integer> counts = new HashMap<>();
+        counts.put("x", 1);
+        counts.put("y", 2);
+        oldEntity.counts = counts;
+        final Containers newEntity = new Containers();
+        newEntity.tags = Arrays.asList("b", "c");
+        newEntity.counts = new HashMap<>();
+        newEntity.counts.put("y", 3);
+
+        final long changes = new ContainersUpdater().updateWithChanges(oldEntity, newEntity);
+
+        assertSame(tags, oldEntity.tags);
+        assertEquals(Arrays.asList("b", "c"), tags);
+        assertSame(counts, oldEntity.counts);
+        assertEquals(newEntity.counts, counts);
+        assertEquals(1L << ContainersUpdater.FIELD_TAGS | 1L << ContainersUpdater.FIELD_COUNTS, changes);
+    }
+
+    @Test
+    public void arraysOfSameLengthAreCopiedInto() {
+        final Containers oldEntity = new Containers();
+        final int[] scores = {1, 2};
+        oldEntity.scores = scores;
+        final Containers newEntity = new Containers();
+        newEntity.scores = new int[]{3, 4};
+
+        new ContainersUpdater().update(oldEntity, newEntity);
+
+        assertSame(scores, oldEntity.scores);
+        assertArrayEquals(new int[]{3, 4}, scores);
+
+        newEntity.scores = new int[]{5, 6, 7};
+        new ContainersUpdater().update(oldEntity, newEntity);
+
+        assertSame(newEntity.scores, oldEntity.scores);
+    }
+
+    @Test
+    public void equalContentsAreNotReported() {
+        final Containers oldEntity = new Containers();
+        oldEntity.tags = new ArrayList<>(Arrays.asList("a"));
+        oldEntity.scores = new int[]{1};
+        final Containers newEntity = new Containers();
+        newEntity.tags = Arrays.asList("a");
+        newEntity.scores = new int[]{1};
+
+        assertEquals(0L, new ContainersUpdater().updateWithChanges(oldEntity, newEntity));
+    }
+
+    @Test
+    public void keyedElementsAreMergedByKey() {
+        final Containers oldEntity = new Containers();
+        final Keyed first = new Keyed(1L, "a");
+        final List<Keyed> items = new ArrayList<>(Arrays.asList(first, new Keyed(2L, "b")));
+        oldEntity.items = items;
+        final Containers newEntity = new Containers();
+        newEntity.items = Arrays.asList(new Keyed(1L, "x"), new Keyed(3L, "c"));
+
+        new ContainersUpdater().update(oldEntity, newEntity);
+
+        assertSame(items, oldEntity.items);
+        assertEquals(2, items.size());
+        assertSame(first, items.get(0));
+        assertEquals("x", first.name);
+        assertEquals(3L, items.get(1).id);
+    }
+}
@@ -0,0 +1,69 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Owner;
+import cn.campusapp.updatercompiler.model.OwnerUpdater;
+import cn.campusapp.updatercompiler.model.Settings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MergeNestedTest {
+
+    private static Settings settings(int theme, String language) {
+        final Settings settings = new Settings();
+        settings.theme = theme;
+        settings.language = language;
+        return settings;
+    }
+
+    @Test
+    public void nestedMemberKeepsItsIdentity() {
+        final Owner oldEntity = new Owner();
+        final Settings settings = settings(1, "en");
+        oldEntity.settings = settings;
+        final Owner newEntity = new Owner();
+        newEntity.settings = settings(2, "fr");
+
+        final long changes = new OwnerUpdater().updateWithChanges(oldEntity, newEntity);
+
+        assertSame(settings, oldEntity.settings);
+        assertEquals(2, settings.theme);
+        assertEquals("fr", settings.language);
+        assertEquals(1L << OwnerUpdater.FIELD_SETTINGS, changes);
+    }
+
+    @Test
+    public void unchangedNestedMemberIsNotReported() {
+        final Owner oldEntity = new Owner();
+        oldEntity.settings = settings(1, "en");
+        final Owner newEntity = new Owner();
+        newEntity.settings = settings(1, "en");
+
+        assertEquals(0L, new OwnerUpdater().updateWithChanges(oldEntity, newEntity));
+    }
+
+    @Test
+    public void missingNestedMemberIsTaken() {
+        final Owner oldEntity = new Owner();
+        final Owner newEntity = new Owner();
+        newEntity.settings = settings(2, "fr");
+
+        new OwnerUpdater().update(oldEntity, newEntity);
+
+        assertSame(newEntity.settings, oldEntity.settings);
+    }
+
+    @Test
+    public void memberWithoutMergeNestedIsReplaced() {
+        final Owner oldEntity = new Owner();
+        oldEntity.replaced = settings(1, "en");
+        final Owner newEntity = new Owner();
+        newEntity.replaced = settings(2, "fr");
+
+        new OwnerUpdater().update(oldEntity, newEntity);
+
+        assertSame(newEntity.replaced, oldEntity.replaced);
+    }
+}
@@ -0,0 +1,95 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.campusapp.updater.Updater;
+import cn.campusapp.updatercompiler.Compilation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    private static final String sSINK = "metrics.Sink";
+    private static final String sCOUNTER = "metrics.Counter";
+
+    private static Map<String, String> sources() {
+        final Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(sSINK, "package metrics;\n"
+                + "public final class Sink {\n"
+                + "    public static Class<?> type;\n"
+                + "    public static int changedFields = -1;\n"
+                + "    public static long elapsedNanos;\n"
+                + "    public static int calls;\n"
+                + "    public static void onUpdate(Class<?> t, int changed, long elapsed) {\n"
+                + "        type = t; changedFields = changed; elapsedNanos = elapsed; calls++;\n"
+                + "    }\n"
+                + "}\n");
+        sources.put(sCOUNTER, "package metrics;\n"
+                + "@cn.campusapp.updater.Updatable\n"
+                + "public class Counter {\n"
+                + "    public int hits;\n"
+                + "    public String name;\n"
+                + "}\n");
+        return sources;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void update(Compilation compilation, int hits) throws Exception {
+        final Object oldEntity = compilation.newInstance(sCOUNTER);
+        final Object newEntity = compilation.newInstance(sCOUNTER);
+        newEntity.getClass().getField("hits").setInt(newEntity, hits);
+        ((Updater<Object>) compilation.newInstance(sCOUNTER + "Updater")).update(oldEntity, newEntity);
+    }
+
+    private static Object sink(Compilation compilation, String field) throws Exception {
+        return compilation.load(sSINK).getField(field).get(null);
+    }
+
+    @Test
+    public void sinkIsGivenTypeChangedFieldsAndTime() throws Exception {
+        try (Compilation compilation = Compilation.compile(sources(),
+                UpdaterProcessor.OPTION_METRICS + "=" + sSINK, UpdaterProcessor.OPTION_METRICS_TIMING + "=true")) {
+            update(compilation, 3);
+
+            assertEquals(1, sink(compilation, "calls"));
+            assertSame(compilation.load(sCOUNTER), sink(compilation, "type"));
+            assertEquals(1, sink(compilation, "changedFields"));
+            assertTrue((Long) sink(compilation, "elapsedNanos") >= 0L);
+
+            update(compilation, 0);
+
+            assertEquals(2, sink(compilation, "calls"));
+            assertEquals(0, sink(compilation, "changedFields"));
+        }
+    }
+
+    @Test
+    public void elapsedTimeIsNotMeasuredByDefault() throws Exception {
+        try (Compilation compilation = Compilation.compile(sources(), UpdaterProcessor.OPTION_METRICS + "=" + sSINK)) {
+            update(compilation, 3);
+
+            assertEquals(1, sink(compilation, "changedFields"));
+            assertEquals(-1L, sink(compilation, "elapsedNanos"));
+        }
+    }
+
+    @Test
+    public void generatedCodeIsUnchangedWithoutSink() throws Exception {
+        final Map<String, String> counterOnly = new LinkedHashMap<>(sources());
+        counterOnly.remove(sSINK);
+        final String plain;
+        try (Compilation compilation = Compilation.compile(counterOnly)) {
+            plain = compilation.generatedSource(sCOUNTER + "Updater");
+        }
+        try (Compilation compilation = Compilation.compile(counterOnly, UpdaterProcessor.OPTION_METRICS_TIMING + "=true")) {
+            assertEquals(plain, compilation.generatedSource(sCOUNTER + "Updater"));
+        }
+        assertFalse(plain.contains("onUpdate"));
+        assertFalse(plain.contains("nanoTime"));
+    }
+}
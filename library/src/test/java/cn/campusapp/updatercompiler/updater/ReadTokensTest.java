@@ -0,0 +1,109 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import cn.campusapp.updater.TokenReader;
+import cn.campusapp.updatercompiler.model.Streamable;
+import cn.campusapp.updatercompiler.model.StreamableUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ReadTokensTest {
+
+    /**
+     * Reader over a flat list of tokens, "{" and "}" delimit the object and other tokens are names and values
+     */
+    private static final class ListReader implements TokenReader {
+        private final Deque<Object> mTokens;
+
+        ListReader(Object... tokens) {
+            mTokens = new ArrayDeque<>(Arrays.asList(tokens));
+        }
+
+        @Override
+        public void beginObject() {
+            assertEquals("{", mTokens.poll());
+        }
+
+        @Override
+        public void endObject() {
+            assertEquals("}", mTokens.poll());
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !"}".equals(mTokens.peek());
+        }
+
+        @Override
+        public String nextName() {
+            return (String) mTokens.poll();
+        }
+
+        @Override
+        public boolean skipNull() {
+            return false;
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return (Boolean) mTokens.poll();
+        }
+
+        @Override
+        public int nextInt() {
+            return ((Number) mTokens.poll()).intValue();
+        }
+
+        @Override
+        public long nextLong() {
+            return ((Number) mTokens.poll()).longValue();
+        }
+
+        @Override
+        public double nextDouble() {
+            return ((Number) mTokens.poll()).doubleValue();
+        }
+
+        @Override
+        public String nextString() {
+            return (String) mTokens.poll();
+        }
+
+        @Override
+        public void skipValue() {
+            mTokens.poll();
+        }
+    }
+
+    @Test
+    public void readsEnumsAndChars() throws Exception {
+        final Streamable entity = new Streamable();
+
+        new StreamableUpdater().readTokens(new ListReader("{", "kind", "PAID", "grade", "b", "initial", "z", "}"), entity);
+
+        assertSame(Streamable.Kind.PAID, entity.kind);
+        assertEquals('b', entity.grade);
+        assertEquals(Character.valueOf('z'), entity.initial);
+    }
+
+    @Test
+    public void unknownEnumConstantsAndEmptyCharsKeepValues() throws Exception {
+        final Streamable entity = new Streamable();
+        entity.kind = Streamable.Kind.FREE;
+        entity.grade = 'a';
+        entity.initial = 'x';
+
+        new StreamableUpdater().readTokens(new ListReader("{", "kind", "TRIAL", "grade", "", "initial", "", "age", 3, "}"), entity);
+
+        assertSame(Streamable.Kind.FREE, entity.kind);
+        assertEquals('a', entity.grade);
+        assertEquals(Character.valueOf('x'), entity.initial);
+        assertEquals(3, entity.age);
+    }
+}
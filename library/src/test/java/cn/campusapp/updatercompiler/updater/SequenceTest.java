@@ -0,0 +1,115 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.campusapp.updatercompiler.model.Sequenced;
+import cn.campusapp.updatercompiler.model.SequencedUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SequenceTest {
+
+    private static Sequenced pair(long value) {
+        final Sequenced entity = new Sequenced();
+        entity.low = value;
+        entity.high = -value;
+        return entity;
+    }
+
+    @Test
+    public void updateInvalidatesStamp() {
+        final SequencedUpdater updater = new SequencedUpdater();
+        final Sequenced entity = pair(1L);
+        final int stamp = updater.readStamp(entity);
+        assertTrue(updater.validate(entity, stamp));
+
+        updater.update(entity, pair(2L));
+
+        assertFalse(updater.validate(entity, stamp));
+        assertEquals(stamp + 2, entity.getSeq());
+        assertTrue(updater.validate(entity, updater.readStamp(entity)));
+    }
+
+    @Test
+    public void snapshotIsNeverTorn() throws InterruptedException {
+        final SequencedUpdater updater = new SequencedUpdater();
+        final Sequenced entity = pair(0L);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long value = 1L; !stop.get(); value++) {
+                    updater.update(entity, pair(value));
+                }
+            }
+        });
+        writer.start();
+        try {
+            final Sequenced copy = new Sequenced();
+            for (int i = 0; i < 100000; i++) {
+                updater.snapshot(entity, copy);
+                assertEquals(copy.low, -copy.high);
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void concurrentReadersNeverSeeTornFields() throws InterruptedException {
+        final SequencedUpdater updater = new SequencedUpdater();
+        final Sequenced entity = pair(0L);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong torn = new AtomicLong();
+        final AtomicLong validated = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            final long start = w * (1L << 40);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long value = start + 1L; !stop.get(); value++) {
+                        updater.update(entity, pair(value));
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < 4; r++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        final int stamp = updater.readStamp(entity);
+                        final long low = entity.low;
+                        final long high = entity.high;
+                        if (updater.validate(entity, stamp)) {
+                            validated.incrementAndGet();
+                            if (low != -high) {
+                                torn.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(2000L);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0L, torn.get());
+        assertTrue(validated.get() > 0L);
+        assertEquals(0, entity.getSeq() & 1);
+    }
+}
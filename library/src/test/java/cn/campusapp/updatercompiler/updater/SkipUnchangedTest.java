@@ -0,0 +1,55 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Settled;
+import cn.campusapp.updatercompiler.model.SettledUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SkipUnchangedTest {
+
+    private static Settled settled(int level, String bio, String nickname, String city) {
+        final Settled entity = new Settled();
+        entity.level = level;
+        entity.bio = bio;
+        entity.nickname = nickname;
+        entity.setCity(city);
+        entity.setCityCalls = 0;
+        return entity;
+    }
+
+    @Test
+    public void unchangedSetterIsNotCalled() {
+        final Settled oldEntity = settled(1, "bio", "nick", "a");
+
+        new SettledUpdater().update(oldEntity, settled(2, "bio", "nick", "a"));
+
+        assertEquals(2, oldEntity.level);
+        assertEquals(0, oldEntity.setCityCalls);
+    }
+
+    @Test
+    public void changedSetterIsCalledOnce() {
+        final Settled oldEntity = settled(1, "bio", "nick", "a");
+
+        new SettledUpdater().update(oldEntity, settled(1, "bio", "nick", "b"));
+
+        assertEquals("b", oldEntity.getCity());
+        assertEquals(1, oldEntity.setCityCalls);
+    }
+
+    @Test
+    public void equalValuesAreKeptOnlyIfComparedByEquals() {
+        final String bio = new String("bio");
+        final String nickname = new String("nick");
+        final Settled oldEntity = settled(1, bio, nickname, "a");
+
+        final long changes = new SettledUpdater().updateWithChanges(oldEntity, settled(1, "bio", "nick", "a"));
+
+        assertSame(bio, oldEntity.bio);
+        assertEquals("nick", oldEntity.nickname);
+        assertEquals(1L << SettledUpdater.FIELD_NICKNAME, changes);
+    }
+}
@@ -0,0 +1,51 @@
+package cn.campusapp.updatercompiler.updater;
+
+import org.junit.Test;
+
+import cn.campusapp.updatercompiler.model.Revision;
+import cn.campusapp.updatercompiler.model.RevisionUpdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VersionTest {
+
+    private static Revision revision(long rev, int value) {
+        final Revision entity = new Revision();
+        entity.rev$ = rev;
+        entity.value = value;
+        return entity;
+    }
+
+    @Test
+    public void olderVersionsAreIgnored() {
+        final RevisionUpdater updater = new RevisionUpdater();
+        final Revision entity = revision(2L, 1);
+
+        assertFalse(updater.updateIfNewer(entity, revision(1L, 5)));
+        assertEquals(1, entity.value);
+
+        assertTrue(updater.updateIfNewer(entity, revision(3L, 5)));
+        assertEquals(5, entity.value);
+        assertEquals(3L, entity.rev$);
+    }
+
+    @Test
+    public void staleMaskedUpdateIsIgnored() {
+        final RevisionUpdater updater = new RevisionUpdater();
+        final Revision entity = revision(2L, 1);
+
+        updater.update(entity, revision(1L, 5), 1L << RevisionUpdater.FIELD_REV$ | 1L << RevisionUpdater.FIELD_VALUE);
+        assertEquals(1, entity.value);
+
+        updater.update(entity, revision(1L, 5), 1L << RevisionUpdater.FIELD_VALUE);
+        assertEquals(1, entity.value);
+        assertEquals(0L, updater.updateWithChanges(entity, revision(2L, 5), 1L << RevisionUpdater.FIELD_VALUE));
+        assertEquals(1, entity.value);
+
+        updater.update(entity, revision(3L, 5), 1L << RevisionUpdater.FIELD_VALUE);
+        assertEquals(5, entity.value);
+        assertEquals(2L, entity.rev$);
+    }
+}
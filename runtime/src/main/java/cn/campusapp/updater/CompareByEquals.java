@@ -0,0 +1,14 @@
+package cn.campusapp.updater;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On a type or field, non-primitive values are compared by equals instead of ==
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.TYPE, ElementType.FIELD})
+public @interface CompareByEquals {
+}
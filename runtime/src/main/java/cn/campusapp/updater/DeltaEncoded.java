@@ -0,0 +1,15 @@
+package cn.campusapp.updater;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On an updatable type, its updater gets writeDelta and readDelta, which encode changed fields into a ByteBuffer
+ * and decode them into an existing entity
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface DeltaEncoded {
+}
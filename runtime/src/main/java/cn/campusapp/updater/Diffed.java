@@ -0,0 +1,14 @@
+package cn.campusapp.updater;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On an updatable type, its updater gets diff and apply, which record changed fields in a patch and write them later
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Diffed {
+}
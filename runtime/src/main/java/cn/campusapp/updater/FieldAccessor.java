@@ -0,0 +1,122 @@
+package cn.campusapp.updater;
+
+/**
+ * Reads and writes updatable fields of entities of type T by index, the FIELD_* constants of its updater.
+ * Updaters implement it if the compiler is given option updaterAccessors, and UpdaterManagerImpl.getAccessor
+ * looks it up, so generic tooling needs no reflection.
+ * <p/>
+ * Besides boxing get and set, there is a pair of methods for every primitive type, such as getInt and setInt,
+ * so primitives are accessed without boxing. Typed methods throw IllegalArgumentException if the field at index
+ * is not of their type.
+ */
+public interface FieldAccessor<T> {
+    /**
+     * Number of fields, indexes range from 0 to fieldCount() - 1
+     */
+    int fieldCount();
+
+    /**
+     * Name of the field at index
+     */
+    String fieldName(int index);
+
+    /**
+     * Type of the field at index, a raw type if the field is generic
+     */
+    Class<?> fieldType(int index);
+
+    /**
+     * Index of the field of given name, -1 if there is no such field
+     */
+    int fieldIndex(String name);
+
+    /**
+     * Value of the field at index, boxed if it is primitive
+     */
+    Object get(T entity, int index);
+
+    /**
+     * Write the field at index, value is unboxed if the field is primitive
+     */
+    void set(T entity, int index, Object value);
+
+    /**
+     * Value of the boolean field at index
+     */
+    boolean getBoolean(T entity, int index);
+
+    /**
+     * Write the boolean field at index
+     */
+    void setBoolean(T entity, int index, boolean value);
+
+    /**
+     * Value of the byte field at index
+     */
+    byte getByte(T entity, int index);
+
+    /**
+     * Write the byte field at index
+     */
+    void setByte(T entity, int index, byte value);
+
+    /**
+     * Value of the short field at index
+     */
+    short getShort(T entity, int index);
+
+    /**
+     * Write the short field at index
+     */
+    void setShort(T entity, int index, short value);
+
+    /**
+     * Value of the char field at index
+     */
+    char getChar(T entity, int index);
+
+    /**
+     * Write the char field at index
+     */
+    void setChar(T entity, int index, char value);
+
+    /**
+     * Value of the int field at index
+     */
+    int getInt(T entity, int index);
+
+    /**
+     * Write the int field at index
+     */
+    void setInt(T entity, int index, int value);
+
+    /**
+     * Value of the long field at index
+     */
+    long getLong(T entity, int index);
+
+    /**
+     * Write the long field at index
+     */
+    void setLong(T entity, int index, long value);
+
+    /**
+     * Value of the float field at index
+     */
+    float getFloat(T entity, int index);
+
+    /**
+     * Write the float field at index
+     */
+    void setFloat(T entity, int index, float value);
+
+    /**
+     * Value of the double field at index
+     */
+    double getDouble(T entity, int index);
+
+    /**
+     * Write the double field at index
+     */
+    void setDouble(T entity, int index, double value);
+}
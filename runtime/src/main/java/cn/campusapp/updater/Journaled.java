@@ -0,0 +1,14 @@
+package cn.campusapp.updater;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On an updatable type, its updater can record overwritten values in a journal and roll them back
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Journaled {
+}
@@ -0,0 +1,14 @@
+package cn.campusapp.updater;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On the field identifying an entity, such as its id. Its updater gets mergeAll and a canonicalising cache
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface Key {
+}
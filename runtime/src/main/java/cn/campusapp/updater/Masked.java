@@ -0,0 +1,15 @@
+package cn.campusapp.updater;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On an updatable type, its updater gets update and updateWithChanges overloads taking a mask of FIELD_* bits,
+ * which update only the selected fields
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Masked {
+}
@@ -0,0 +1,66 @@
+package cn.campusapp.updater;
+
+import java.io.IOException;
+
+/**
+ * Pull-based reader of JSON tokens, used by updaters of {@link Streamed} entities to read into existing entities.
+ * <p/>
+ * Generated code depends on no JSON library. Implement it by delegating to the JSON parser in use,
+ * such as android.util.JsonReader, Gson's JsonReader or Jackson's JsonParser.
+ */
+public interface TokenReader {
+    /**
+     * Consume the beginning of an object
+     */
+    void beginObject() throws IOException;
+
+    /**
+     * Consume the end of current object
+     */
+    void endObject() throws IOException;
+
+    /**
+     * Whether current object has another member
+     */
+    boolean hasNext() throws IOException;
+
+    /**
+     * Consume the name of next member
+     */
+    String nextName() throws IOException;
+
+    /**
+     * Consume next value and return true if it is null, otherwise consume nothing and return false
+     */
+    boolean skipNull() throws IOException;
+
+    /**
+     * Consume next value as a boolean
+     */
+    boolean nextBoolean() throws IOException;
+
+    /**
+     * Consume next value as an int
+     */
+    int nextInt() throws IOException;
+
+    /**
+     * Consume next value as a long
+     */
+    long nextLong() throws IOException;
+
+    /**
+     * Consume next value as a double
+     */
+    double nextDouble() throws IOException;
+
+    /**
+     * Consume next value as a string
+     */
+    String nextString() throws IOException;
+
+    /**
+     * Consume next value of any kind, including nested objects and arrays
+     */
+    void skipValue() throws IOException;
+}